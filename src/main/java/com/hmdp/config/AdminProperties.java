@@ -0,0 +1,18 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// 管理接口相关配置，对应application.yaml中的hmdp.admin
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.admin")
+public class AdminProperties {
+
+    // 可以调用管理接口（刷新商铺类型、作废缓存、补货等）的用户id，为空时所有管理接口都拒绝
+    private List<Long> userIds = new ArrayList<>();
+}
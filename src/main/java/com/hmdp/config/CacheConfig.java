@@ -0,0 +1,39 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheSerializer;
+import com.hmdp.utils.JsonCacheCodec;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+@Configuration
+public class CacheConfig {
+
+    // 缓存使用的编码，由hmdp.cache.codec决定
+    @Bean
+    public CacheSerializer cacheSerializer(CacheProperties cacheProperties) {
+        String codec = cacheProperties.getCodec();
+        if ("json".equalsIgnoreCase(codec)) {
+            return new CacheSerializer(new JsonCacheCodec(), cacheProperties.getCompressThreshold());
+        }
+        if ("binary".equalsIgnoreCase(codec)) {
+            return new CacheSerializer(new BinaryCacheCodec(), cacheProperties.getCompressThreshold());
+        }
+        throw new IllegalArgumentException("不支持的缓存编码: " + codec);
+    }
+
+    // key是字符串，value是原始字节，编码由CacheSerializer负责
+    @Bean
+    public RedisTemplate<String, byte[]> cacheRedisTemplate(RedisConnectionFactory connectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(RedisSerializer.string());
+        template.setValueSerializer(RedisSerializer.byteArray());
+        template.setHashKeySerializer(RedisSerializer.string());
+        template.setHashValueSerializer(RedisSerializer.byteArray());
+        return template;
+    }
+}
@@ -0,0 +1,107 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// 缓存相关配置，对应application.yaml中的hmdp.cache
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheProperties {
+
+    // 写入缓存时使用的编码：binary（Smile二进制）或json，读取时两种都支持
+    private String codec = "binary";
+
+    // 编码后超过这个字节数就用LZ4压缩，小于等于0表示不压缩
+    private int compressThreshold = 1024;
+
+    // 本地一级缓存（L1），位于redis之前
+    private Local local = new Local();
+
+    // 商铺、优惠券id的布隆过滤器
+    private Bloom bloom = new Bloom();
+
+    // 默认的过期策略：TTL随机抖动 + 提前刷新
+    private Refresh refresh = new Refresh();
+
+    // 按key前缀单独配置过期策略，最长的前缀优先，yaml中key要写成"[cache:shop:]"
+    private Map<String, Refresh> refreshPolicies = new LinkedHashMap<>();
+
+    // 缓存重建线程池
+    private Rebuild rebuild = new Rebuild();
+
+    // 热点key探测
+    private HotKey hotKey = new HotKey();
+
+    // 启动时的缓存预热
+    private WarmUp warmUp = new WarmUp();
+
+    // 每隔多少秒从redis全量同步一次各前缀的代数，补上丢失的发布订阅消息，小于等于0表示不同步
+    private long generationSyncSeconds = 30;
+
+    @Data
+    public static class Local {
+        // 是否开启本地缓存
+        private boolean enabled = true;
+        // 最多缓存多少个key，超出后按LRU淘汰
+        private int maximumSize = 1000;
+        // 本地缓存的存活时间（秒），其他节点的更新最多延迟这么久可见
+        private long expireSeconds = 60;
+    }
+
+    @Data
+    public static class Bloom {
+        // local（进程内位图）、redis（redis位图）或none（不过滤）
+        private String mode = "local";
+        // 预计的id数量
+        private long expectedInsertions = 1000000;
+        // 误判率
+        private double fpp = 0.01;
+    }
+
+    @Data
+    public static class Refresh {
+        // TTL随机增加 0 ~ jitter 倍，同时写入的key不会同时过期
+        private double jitter = 0.1;
+        // 提前刷新的激进程度（XFetch的beta），越大越早刷新，0表示不提前刷新
+        private double beta = 1.0;
+    }
+
+    @Data
+    public static class Rebuild {
+        // 重建线程数
+        private int threads = 10;
+        // 最多排队的重建任务数，满了之后丢弃优先级最低的
+        private int queueCapacity = 1000;
+    }
+
+    @Data
+    public static class HotKey {
+        // 是否开启热点探测，热点key会固定在本地缓存中，不受LRU淘汰影响
+        private boolean enabled = true;
+        // 每多少次访问采样一次
+        private int sampleEvery = 4;
+        // 统计窗口（秒）
+        private long windowSeconds = 10;
+        // 窗口内访问次数达到这个值视为热点
+        private long threshold = 500;
+        // 记录访问最多的前多少个key，也是固定的热点key的最大数量
+        private int topK = 20;
+        // 热点key在本地固定多久（秒），数据更新时会通过发布订阅删除
+        private long pinSeconds = 10;
+    }
+
+    @Data
+    public static class WarmUp {
+        // 是否在启动时预热商铺和商铺类型
+        private boolean enabled = true;
+        // 每次从数据库读取多少行
+        private int chunkSize = 500;
+        // 写redis的线程数
+        private int threads = 4;
+    }
+}
@@ -0,0 +1,22 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+// 全局id生成相关配置，对应application.yaml中的hmdp.id
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.id")
+public class IdProperties {
+
+    // redis：时间戳 + redis中按天自增的序列号（RedisIdWorker）
+    // snowflake：时间戳 + 机器号 + 本地序列号，生成id不访问redis（SnowflakeIdWorker），机器号从redis租用
+    private String mode = "redis";
+
+    // 号段大小：每次用INCRBY从redis领取这么多个序列号，在本地发放；0表示每个id执行一次INCR
+    private int segmentSize = 1000;
+
+    // snowflake模式下机器号租约的时长（秒），每1/3时长续期一次
+    private long workerLeaseSeconds = 60;
+}
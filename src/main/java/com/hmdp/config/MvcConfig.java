@@ -1,5 +1,6 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshInterceptor;
 import org.springframework.context.annotation.Configuration;
@@ -13,6 +14,8 @@ import javax.annotation.Resource;
 public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private AdminProperties adminProperties;
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
@@ -25,10 +28,22 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/code",
                         "/user/login",
                         "/blog/hot",
+                        // 负载均衡的就绪检查
+                        "/cache/ready",
                         "/shop/**",
                         "/shop-type/**",
                         "/upload/**",
-                        "/voucher/**"
+                        // 优惠券只有查询列表不需要登录，新增和补货是管理接口
+                        "/voucher/list/**"
                 ).order(1);
+        // 管理接口，只有配置的管理员可以调用
+        registry.addInterceptor(new AdminInterceptor(adminProperties))
+                .addPathPatterns(
+                        "/shop-type/refresh",
+                        "/cache/namespace/bump",
+                        "/voucher",
+                        "/voucher/seckill",
+                        "/voucher/seckill/*/stock"
+                ).order(2);
     }
 }
@@ -0,0 +1,56 @@
+package com.hmdp.config;
+
+import com.hmdp.constant.RedisConstant;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilter;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SoldOutVouchers;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+
+// redis发布订阅的监听配置
+@Configuration
+public class RedisListenerConfig {
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                       CacheClient cacheClient,
+                                                                       IdBloomFilter idBloomFilter,
+                                                                       IShopTypeService shopTypeService,
+                                                                       SoldOutVouchers soldOutVouchers,
+                                                                       SeckillOrderStatus seckillOrderStatus) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        // 任意节点删除缓存后，所有节点都删除对应的本地缓存
+        container.addMessageListener(
+                (message, pattern) -> cacheClient.evictLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstant.CACHE_INVALIDATE_CHANNEL));
+        // 任意节点作废了整个命名空间，所有节点切换到新的代数
+        container.addMessageListener(
+                (message, pattern) -> cacheClient.onGenerationMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstant.CACHE_GENERATION_CHANNEL));
+        // 布隆过滤器为进程内模式时，其他节点新增的id也要添加
+        container.addMessageListener(
+                (message, pattern) -> idBloomFilter.onAddMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstant.BLOOM_ADD_CHANNEL));
+        // 商铺类型有修改，重新加载本地快照
+        container.addMessageListener(
+                (message, pattern) -> shopTypeService.onVersionMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstant.SHOP_TYPE_VERSION_CHANNEL));
+        // 秒杀券在某个节点上发现售罄或者补货了，所有节点同步本地的售罄标记
+        container.addMessageListener(
+                (message, pattern) -> soldOutVouchers.onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstant.SECKILL_SOLD_OUT_CHANNEL));
+        // 订单状态变化，唤醒本节点上等待这些订单的长轮询请求
+        container.addMessageListener(
+                (message, pattern) -> seckillOrderStatus.onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstant.SECKILL_ORDER_STATUS_CHANNEL));
+        return container;
+    }
+}
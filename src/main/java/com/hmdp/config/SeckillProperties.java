@@ -0,0 +1,72 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+// 秒杀下单相关配置，对应application.yaml中的hmdp.seckill
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill")
+public class SeckillProperties {
+
+    // 旧秒杀券（没有按秒杀券分stream之前创建的）的订单stream分区数，按用户id取模选择分区
+    // 只能增加不能减少，减少后多出来的分区不会再被消费；新的秒杀券每个（分片）有自己的stream
+    private int partitions = 4;
+
+    // 每个节点的消费者线程数，每个线程负责本节点持有的一部分stream
+    private int consumers = 2;
+
+    // 秒杀结束多久（小时）后不再消费它的订单stream
+    private long streamRetentionHours = 24;
+
+    // 裁剪订单stream的间隔（秒），删除所有消费者组都已经确认的消息；0表示不裁剪
+    private long trimIntervalSeconds = 60;
+
+    // 裁剪前把消息归档到这个目录下的gzip文件，空表示不归档直接删除
+    private String archiveDir = "";
+
+    // pending消息超过这么久（秒）没有确认，认为它的消费者已经挂了，由其他消费者认领
+    private long claimIdleSeconds = 60;
+
+    // 检查pending消息的间隔（秒）
+    private long claimIntervalSeconds = 30;
+
+    // 一条订单消息最多投递几次，还失败就转入死信stream
+    private int maxDeliveries = 5;
+
+    // 处理失败后第一次重试前等待的毫秒数，之后每次翻倍
+    private long retryBackoffMillis = 1000;
+
+    // 重试等待的上限（毫秒）
+    private long maxRetryBackoffMillis = 60000;
+
+    // 分区租约的时长（秒），每1/3时长续期一次；节点挂掉后最多这么久其他节点接管它的分区
+    private long leaseSeconds = 30;
+
+    // 本地售罄标记的有效期（秒），补货消息丢失时最多这么久后恢复；过期后再有请求会重新执行一次lua脚本确认
+    private long soldOutTtlSeconds = 60;
+
+    // 每次从redis租出的库存数，节点在本地扣减，用完再租；0表示不租，每个请求都在redis中扣库存
+    // 租约越大redis压力越小，但库存快卖完时可能出现一个节点还有库存、其他节点已经抢不到的情况
+    private int stockLeaseSize = 0;
+
+    // 租出的库存多久（秒）没用完就还回redis
+    private long stockLeaseSeconds = 5;
+
+    // 新增秒杀券时把库存分成几片，1表示不分片；分片数记录在优惠券上，修改后只影响新增的秒杀券
+    private int stockShards = 1;
+
+    // 消费者每批最多处理的订单数，一批订单在一个事务里写入：一条多行INSERT，每个优惠券一条扣库存的UPDATE
+    // 设为1时逐条处理（每条订单一个事务）
+    private int batchSize = 100;
+
+    // 读到第一条消息后最多再等这么久（毫秒）凑满一批，流量小时不会因为凑批增加太多延迟
+    private long batchWaitMillis = 50;
+
+    // 订单状态记录的有效期（秒），过期后只能查订单列表
+    private long orderStatusTtlSeconds = 3600;
+
+    // 长轮询订单状态最多等待的秒数
+    private long orderStatusMaxWaitSeconds = 30;
+}
@@ -1,5 +1,8 @@
 package com.hmdp.constant;
 
+import java.util.Arrays;
+import java.util.List;
+
 public class RedisConstant {
     public static final String CODE = "code";
 
@@ -7,10 +10,37 @@ public class RedisConstant {
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shop_type:";
+    // 商铺类型快照的版本号，以及版本号变化的通知频道
+    public static final String SHOP_TYPE_VERSION_KEY = "cache:shop_type:version";
+    public static final String SHOP_TYPE_VERSION_CHANNEL = "shop_type:version";
+    // 用户的公开信息（昵称、头像），value是UserDTO
+    public static final String CACHE_USER_KEY = "cache:user:";
+    // 店铺的优惠券列表，value是Voucher[]
+    public static final String CACHE_VOUCHER_LIST_KEY = "cache:voucher:shop:";
+    // 缓存失效通知的频道，消息内容为被删除的key
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    // 每个缓存前缀的代数（hash，field是前缀），以及代数变化的通知频道，消息内容为 前缀|代数
+    public static final String CACHE_GENERATION_KEY = "cache:generation";
+    public static final String CACHE_GENERATION_CHANNEL = "cache:generation:bump";
+    // 待清理的旧代key，zset，成员是 前缀|代数，分数是可以清理的时间（redis服务器的毫秒时间），任意节点到期后认领并清理
+    public static final String CACHE_GENERATION_CLEANUP_KEY = "cache:generation:cleanup";
+    // 通过CacheClient.key生成key、可以整体作废的缓存前缀
+    public static final List<String> CACHE_NAMESPACES = Arrays.asList(
+            CACHE_SHOP_KEY, CACHE_USER_KEY, CACHE_VOUCHER_LIST_KEY);
+    // 布隆过滤器
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";
+    public static final String BLOOM_VOUCHER_KEY = "bloom:voucher";
+    // redis模式：过滤器名:current 保存已经建好的过滤器（过滤器名:时间戳），过滤器名:building 是正在重建的过滤器，也是重建锁
+    public static final String BLOOM_CURRENT_SUFFIX = ":current";
+    public static final String BLOOM_BUILDING_SUFFIX = ":building";
+    // 布隆过滤器新增id的频道，消息内容为 过滤器名|id
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final Long LOGIN_CODE_TTL = 5L;
     public static final Long CACHE_TTL = 30L;
+    // 优惠券列表中有秒杀库存，过期时间短一些
+    public static final Long CACHE_VOUCHER_LIST_TTL = 1L;
     public static final Long CACHE_NULL_TTL = 2L;
     public static final Long LOGIN_USER_TTL = 24L;
     public static final Long LOCK_SHOP_TTL = 10L;
@@ -28,7 +58,43 @@ public class RedisConstant {
 
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
+    // 缓存重建锁的前缀，后面拼接完整的缓存key
+    public static final String LOCK_KEY_PREFIX = "lock:";
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    // 一人一单的集合
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    // 秒杀券的库存分片数，新增秒杀券时写入，没有这个key的是不分片的旧优惠券
+    public static final String SECKILL_STOCK_SHARDS_KEY = "seckill:shards:";
+    // 库存租约记录，hash，后面拼接库存分片的hash tag，字段是节点id，值是这个节点租走还没卖出的库存数
+    public static final String SECKILL_STOCK_LEASE_KEY = "seckill:stock:lease:";
+    // 有节点租过库存的分片，set，成员是 优惠券id:分片，定时检查其中已下线节点的租约
+    public static final String SECKILL_STOCK_LEASES_KEY = "seckill:stock:leases";
+    // 持有库存租约的节点的心跳，后面拼接节点id，带过期时间，key不存在的节点视为已经下线
+    public static final String SECKILL_STOCK_HOLDER_KEY = "seckill:stock:holder:";
+    // 秒杀订单的stream，每个秒杀券（分片）一个：stream.orders:{id} 或 stream.orders:{id:分片}
+    // 旧秒杀券使用 stream.orders:分区号，不带分区号的是分区之前的旧stream
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    // 所有秒杀券的订单stream，zset，分数是秒杀结束的时间戳
+    public static final String SECKILL_STREAMS_KEY = "seckill:streams";
+    // 多次重试仍然失败的订单消息
+    public static final String SECKILL_ORDER_DLQ = "stream.orders.dlq";
+    // 秒杀订单的处理状态，后面拼接 hash tag:订单id，值是PENDING、CREATED或FAILED
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:order:status:";
+    // 订单状态变化的通知，唤醒各个节点上等待的长轮询请求
+    public static final String SECKILL_ORDER_STATUS_CHANNEL = "seckill:order:status";
+    // snowflake机器号的租约，后面拼接机器号，值是持有它的节点id
+    public static final String ID_WORKER_KEY = "id:worker:";
+    // 每个机器号预留到的时间戳（秒），hash，持有者发号前先写入，新的持有者从这之后开始，避免和上一个持有者重复
+    public static final String ID_WORKER_LAST_KEY = "id:worker:last";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    // 分区的租约，后面拼接stream的key，值是持有它的节点id，同一时刻一个分区只有一个节点消费
+    public static final String SECKILL_LEASE_KEY = "seckill:lease:";
+    // 存活的消费节点，zset，分数是最近一次心跳的时间戳，用来计算每个节点应该持有几个分区
+    public static final String SECKILL_NODES_KEY = "seckill:nodes";
+    // 秒杀券的补货版本号，后面拼接库存分片的hash tag，每次补货所有分片都加一
+    public static final String SECKILL_RESTOCK_EPOCH_KEY = "seckill:restock:epoch:";
+    // 优惠券售罄/补货的频道，消息内容为 +id:版本号（售罄）或 -id:版本号（补货）
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold_out";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
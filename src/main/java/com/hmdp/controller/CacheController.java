@@ -0,0 +1,95 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.constant.RedisConstant;
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRebuildScheduler;
+import com.hmdp.utils.CacheWarmUp;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 缓存诊断接口
+ * </p>
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private CacheWarmUp cacheWarmUp;
+    @Resource
+    private CacheRebuildScheduler cacheRebuildScheduler;
+
+    /**
+     * 查询本地缓存的统计信息
+     * @return 命中、未命中、淘汰次数
+     */
+    @GetMapping("/stats")
+    public Result stats() {
+        return Result.ok(cacheClient.localStats());
+    }
+
+    /**
+     * 查询当前的热点key
+     * @return 访问最多的key、各前缀的访问次数、固定在本地的热点key统计
+     */
+    @GetMapping("/hot-keys")
+    public Result hotKeys() {
+        return Result.ok(cacheClient.hotKeys());
+    }
+
+    /**
+     * 查询缓存重建线程池的统计信息
+     * @return 队列长度、去重和丢弃次数、成功失败次数、重建耗时
+     */
+    @GetMapping("/rebuild")
+    public Result rebuild() {
+        return Result.ok(cacheRebuildScheduler.stats());
+    }
+
+    /**
+     * 作废整个缓存命名空间，例如所有商铺 cache:shop:，只有管理员可以调用
+     * @param prefix 缓存key前缀，必须是RedisConstant.CACHE_NAMESPACES中的一个
+     * @return 新的代数
+     */
+    @PostMapping("/namespace/bump")
+    public Result bumpNamespace(@RequestParam("prefix") String prefix) {
+        if (!RedisConstant.CACHE_NAMESPACES.contains(prefix)) {
+            return Result.fail("未知的缓存前缀：" + prefix);
+        }
+        return Result.ok(cacheClient.bumpGeneration(prefix));
+    }
+
+    /**
+     * 就绪检查，给负载均衡使用，不需要登录
+     * @return 预热完成返回200，预热中或预热失败返回503
+     */
+    @GetMapping("/ready")
+    public ResponseEntity<Result> ready() {
+        Result result = Result.ok(cacheWarmUp.status());
+        return cacheWarmUp.isReady()
+                ? ResponseEntity.ok(result)
+                : ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(result);
+    }
+
+    /**
+     * 查询启动预热的进度
+     * @return 状态、已预热数量、耗时
+     */
+    @GetMapping("/warm-up")
+    public Result warmUp() {
+        return Result.ok(cacheWarmUp.status());
+    }
+}
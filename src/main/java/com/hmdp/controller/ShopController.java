@@ -8,8 +8,10 @@ import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -29,13 +31,28 @@ public class ShopController {
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
-     * @return 商铺详情数据
+     * @return 商铺详情数据，ETag没变时返回304
      */
     @GetMapping("/{id}")
-    public Result queryShopById(@PathVariable("id") Long id) throws InterruptedException {
+    public Result queryShopById(@PathVariable("id") Long id, WebRequest webRequest) throws InterruptedException {
+        // ETag在写入缓存时已经算好，没变时直接返回304，不查询也不编码
+        String etag = shopService.queryEtag(id);
+        if (etag != null && webRequest.checkNotModified(etag)) {
+            return null;
+        }
         return Result.ok(shopService.queryById(id));
     }
 
+    /**
+     * 根据id批量查询商铺信息
+     * @param ids 商铺id列表，逗号分隔
+     * @return 商铺列表，顺序和传入的id一致，不存在的商铺不返回
+     */
+    @GetMapping("/batch")
+    public Result queryShopByIds(@RequestParam("ids") List<Long> ids) {
+        return shopService.queryByIds(ids);
+    }
+
     /**
      * 新增商铺信息
      * @param shop 商铺数据
@@ -43,10 +60,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库，返回店铺id
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -2,14 +2,19 @@ package com.hmdp.controller;
 
 
 import com.hmdp.dto.Result;
-import com.hmdp.entity.ShopType;
 import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.ShopTypeSnapshot;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.annotation.Resource;
-import java.util.List;
 
 /**
  * <p>
@@ -25,12 +30,33 @@ public class ShopTypeController {
     @Resource
     private IShopTypeService typeService;
 
+    // 直接写出快照中提前编码好的字节，ETag没变时返回304（If-None-Match支持多个值、*和弱ETag）
     @GetMapping("list")
-    public Result queryTypeList() {
-        List<ShopType> typeList = typeService.queryTypeList();
+    public ResponseEntity<byte[]> queryTypeList(
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+            WebRequest webRequest) {
+        ShopTypeSnapshot snapshot = typeService.snapshot();
         // List<ShopType> typeList = typeService
         //         .query().orderByAsc("sort").list();
+        if (webRequest.checkNotModified(snapshot.getEtag())) {
+            return null;
+        }
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                .eTag(snapshot.getEtag())
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            return builder.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(snapshot.getGzip());
+        }
+        return builder.body(snapshot.getJson());
+    }
 
-        return Result.ok(typeList);
+    /**
+     * 修改tb_shop_type后调用，通知所有节点重新加载商铺类型，只有管理员可以调用
+     * @return 新的版本号
+     */
+    @PostMapping("refresh")
+    public Result refresh() {
+        return Result.ok(typeService.publishTypeChange());
     }
 }
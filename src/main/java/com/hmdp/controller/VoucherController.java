@@ -5,6 +5,7 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.annotation.Resource;
 
@@ -30,7 +31,7 @@ public class VoucherController {
      */
     @PostMapping
     public Result addVoucher(@RequestBody Voucher voucher) {
-        voucherService.save(voucher);
+        voucherService.addVoucher(voucher);
         return Result.ok(voucher.getId());
     }
 
@@ -45,13 +46,29 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 秒杀券补货
+     * @param voucherId 优惠券id
+     * @param count 增加的库存
+     * @return 补货结果
+     */
+    @PutMapping("seckill/{id}/stock")
+    public Result restockSeckillVoucher(@PathVariable("id") Long voucherId, @RequestParam("count") Integer count) {
+        return voucherService.restockSeckillVoucher(voucherId, count);
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
-     * @return 优惠券列表
+     * @return 优惠券列表，ETag没变时返回304
      */
     @GetMapping("/list/{shopId}")
-    public Result queryVoucherOfShop(@PathVariable("shopId") Long shopId) {
-       return voucherService.queryVoucherOfShop(shopId);
+    public Result queryVoucherOfShop(@PathVariable("shopId") Long shopId, WebRequest webRequest) {
+        // ETag在写入缓存时已经算好，没变时直接返回304，不查询也不编码
+        String etag = voucherService.queryVoucherOfShopEtag(shopId);
+        if (etag != null && webRequest.checkNotModified(etag)) {
+            return null;
+        }
+        return voucherService.queryVoucherOfShop(shopId);
     }
 }
@@ -3,10 +3,17 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.utils.SeckillOrderConsumer;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.UserHolder;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
@@ -23,9 +30,50 @@ import javax.annotation.Resource;
 public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillOrderConsumer seckillOrderConsumer;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private SeckillProperties seckillProperties;
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
 
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 查询秒杀订单的处理状态，只读redis中的状态记录，不查数据库
+     * @param orderId 秒杀下单返回的订单id
+     * @param voucherId 优惠券id
+     * @return PENDING（排队中）、CREATED（已创建）、FAILED（失败）、UNKNOWN（不存在或已过期）
+     */
+    @GetMapping("/{id}/status")
+    public Result orderStatus(@PathVariable("id") Long orderId, @RequestParam("voucherId") Long voucherId) {
+        return Result.ok(seckillOrderStatus.get(voucherId, UserHolder.getUser().getId(), orderId));
+    }
+
+    /**
+     * 长轮询订单状态：还在排队时等待状态变化后再返回
+     * @param orderId 秒杀下单返回的订单id
+     * @param voucherId 优惠券id
+     * @param timeout 最多等待的秒数，不超过配置的上限
+     * @return 同 /{id}/status，超时返回当时的状态
+     */
+    @GetMapping("/{id}/status/poll")
+    public DeferredResult<Result> pollOrderStatus(@PathVariable("id") Long orderId,
+                                                  @RequestParam("voucherId") Long voucherId,
+                                                  @RequestParam(value = "timeout", defaultValue = "10") Long timeout) {
+        long seconds = Math.max(1, Math.min(timeout, seckillProperties.getOrderStatusMaxWaitSeconds()));
+        return seckillOrderStatus.await(voucherId, UserHolder.getUser().getId(), orderId, seconds);
+    }
+
+    /**
+     * 查询秒杀订单消费者的统计信息
+     * @return 待确认消息数、失败、重试、死信次数、死信stream长度
+     */
+    @GetMapping("/consumer/stats")
+    public Result consumerStats() {
+        return Result.ok(seckillOrderConsumer.stats());
+    }
 }
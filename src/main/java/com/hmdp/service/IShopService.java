@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -15,6 +17,12 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IShopService extends IService<Shop> {
     Result queryById(Long id) throws InterruptedException;
 
+    String queryEtag(Long id);
+
+    Result queryByIds(List<Long> ids);
+
+    Result saveShop(Shop shop);
+
     Result updateShop(Shop shop);
 
     void saveShop2Redis(long id, long expiredSeconds) throws InterruptedException;
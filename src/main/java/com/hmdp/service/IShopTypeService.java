@@ -1,6 +1,7 @@
 package com.hmdp.service;
 
 import com.hmdp.entity.ShopType;
+import com.hmdp.utils.ShopTypeSnapshot;
 import com.baomidou.mybatisplus.extension.service.IService;
 
 import java.util.List;
@@ -16,4 +17,12 @@ import java.util.List;
 public interface IShopTypeService extends IService<ShopType> {
 
     List<ShopType> queryTypeList();
+
+    ShopTypeSnapshot snapshot();
+
+    ShopTypeSnapshot reloadSnapshot(long version);
+
+    long publishTypeChange();
+
+    void onVersionMessage(String message);
 }
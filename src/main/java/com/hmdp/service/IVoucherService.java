@@ -16,5 +16,11 @@ public interface IVoucherService extends IService<Voucher> {
 
     Result queryVoucherOfShop(Long shopId);
 
+    String queryVoucherOfShopEtag(Long shopId);
+
+    void addVoucher(Voucher voucher);
+
     void addSeckillVoucher(Voucher voucher);
+
+    Result restockSeckillVoucher(Long voucherId, Integer count);
 }
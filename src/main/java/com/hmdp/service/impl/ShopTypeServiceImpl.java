@@ -1,19 +1,24 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
+import cn.hutool.core.util.ZipUtil;
+import cn.hutool.crypto.SecureUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.constant.RedisConstant;
+import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.ShopTypeSnapshot;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
-import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * <p>
@@ -23,32 +28,76 @@ import java.util.concurrent.TimeUnit;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    // 和spring mvc使用同一个ObjectMapper，编码结果和普通接口一致
+    @Resource
+    private ObjectMapper objectMapper;
+
+    // 商铺类型几乎不会变，整个列表保存在本地，首页加载时不访问redis，也不做json转换
+    private final AtomicReference<ShopTypeSnapshot> snapshot = new AtomicReference<>();
 
     // 获取所有商铺类型
     @Override
     public List<ShopType> queryTypeList() {
-        String key = RedisConstant.CACHE_SHOP_TYPE_KEY;
-        // 查找所有商铺类型，也就是0到-1
-        String shopTypeJson = stringRedisTemplate.opsForValue().get(key);
-        if(StrUtil.isNotBlank(shopTypeJson)){
-            // 缓存中有数据，直接返回
-            return JSONUtil.toList(shopTypeJson, ShopType.class);
+        return snapshot().getTypes();
+    }
+
+    @Override
+    public ShopTypeSnapshot snapshot() {
+        ShopTypeSnapshot current = snapshot.get();
+        if(current != null){
+            return current;
+        }
+        return reloadSnapshot(currentVersion());
+    }
+
+    // 从数据库重新加载，版本号不大于当前快照时不加载
+    @Override
+    public synchronized ShopTypeSnapshot reloadSnapshot(long version) {
+        ShopTypeSnapshot current = snapshot.get();
+        if(current != null && current.getVersion() >= version){
+            return current;
         }
         // 从数据库中查询，按照升序，执行查询并返回列表list
         List<ShopType> list = query().orderByAsc("sort").list();
-        // todo:这里需要返回吗？
-        if(list == null){
-            return list;
+        ShopTypeSnapshot next = encode(version, list);
+        // 整体替换，正在读旧快照的请求不受影响
+        snapshot.set(next);
+        log.info("商铺类型快照已更新，版本{}，共{}个类型", version, list.size());
+        return next;
+    }
+
+    // 修改tb_shop_type后调用，所有节点收到新版本号后重新加载
+    @Override
+    public long publishTypeChange() {
+        Long version = stringRedisTemplate.opsForValue().increment(RedisConstant.SHOP_TYPE_VERSION_KEY);
+        stringRedisTemplate.convertAndSend(RedisConstant.SHOP_TYPE_VERSION_CHANNEL, String.valueOf(version));
+        return version;
+    }
+
+    // 收到其他节点发布的版本号
+    @Override
+    public void onVersionMessage(String message) {
+        reloadSnapshot(Long.parseLong(message));
+    }
+
+    private long currentVersion() {
+        String version = stringRedisTemplate.opsForValue().get(RedisConstant.SHOP_TYPE_VERSION_KEY);
+        return StrUtil.isBlank(version) ? 0 : Long.parseLong(version);
+    }
+
+    private ShopTypeSnapshot encode(long version, List<ShopType> list) {
+        byte[] json;
+        try {
+            json = objectMapper.writeValueAsBytes(Result.ok(list));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("商铺类型编码失败", e);
         }
-        stringRedisTemplate.opsForValue().set(
-                key,
-                JSONUtil.toJsonStr(list),
-                RedisConstant.CACHE_TTL,
-                TimeUnit.MINUTES);
-        return list;
+        String etag = "W/\"" + version + "-" + SecureUtil.md5().digestHex(json).substring(0, 16) + "\"";
+        return new ShopTypeSnapshot(version, list, json, ZipUtil.gzip(json), etag);
     }
 }
@@ -12,6 +12,7 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RegexUtils;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.BeanUtils;
@@ -20,9 +21,11 @@ import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.LOGIN_CODE_KEY;
 import static com.hmdp.utils.RedisConstants.LOGIN_CODE_TTL;
@@ -40,6 +43,8 @@ import static com.hmdp.utils.RedisConstants.LOGIN_CODE_TTL;
 public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IUserService {
     @Resource  // 用法类似@atutowired，是jdk的标准注解
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheClient cacheClient;
     @Override
     public Result sendCode(String phone, HttpSession session) {
         // 校验手机号
@@ -119,4 +124,18 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         // 最后返回登录结果
         return token;
     }
+
+    // 批量查询用户的公开信息，先查缓存，未命中的一次IN查询加载
+    @Override
+    public Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids) {
+        return cacheClient.queryBatch(
+                RedisConstant.CACHE_USER_KEY,
+                ids,
+                UserDTO.class,
+                missIds -> listByIds(missIds).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                RedisConstant.CACHE_TTL,
+                TimeUnit.MINUTES
+        );
+    }
 }
@@ -3,6 +3,8 @@ package com.hmdp.service.impl;
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.log.Log;
 import com.baomidou.mybatisplus.core.conditions.update.LambdaUpdateWrapper;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.constant.RedisConstant;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
@@ -12,8 +14,12 @@ import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IVoucherService;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.IdBloomFilter;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.SeckillStockLeases;
+import com.hmdp.utils.SeckillStockShards;
 import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SoldOutVouchers;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
@@ -26,15 +32,21 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.security.PrivateKey;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
@@ -55,165 +67,100 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IdGenerator idGenerator;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private RedissonClient redissonClient;
+    @Resource
+    private IdBloomFilter idBloomFilter;
 
-    // AopContext.currentProxy()底层也是利用ThreadLocal获取的，所以异步线程中也无法使用。
-    // 解决方案有两种，第一种是将代理对象和订单一起放入阻塞队列中
-    // 第二种是将代理对象的作用域提升，变成一个成员变量
-    private IVoucherOrderService proxy;
-
-
-
-    // 使用消息队列，分开线程处理
-    @PostConstruct
-    private void inti(){
-
-        // 执行线程任务
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandel());
-    }
-
-    // 存储订单的阻塞队列，订单任务
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024*1024);
-    // 线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
-    // 队列名
-    private static final String QUEUE_NAME = "stream.orders";
-
-
-
-    // 线程任务：不断从阻塞队列中取出订单信息，进行下单
-    private class VoucherOrderHandel implements Runnable{
-        @Override
-        public void run() {
-            while(true){
-
-                try{
-                    // 从消息队列中获取订单信息
-                    // XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders > （从下一个未被消费的开始）
-                    List<MapRecord<String, Object, Object>> messageList = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            // StreamReadOptions.empty()：创建一个空的读取选项对象，用于配置读取消息的行为。
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(1)),
-                            StreamOffset.create(QUEUE_NAME, ReadOffset.lastConsumed())
-                    );
-                    // 如果消息没有获取成功，进入下一次循环
-                    if(messageList == null || messageList.isEmpty()){
-                        continue;
-                    }
-                    // 消息获取成功，可以下单
-                    // 将消息对象转换为VoucherOrder对象
-                    MapRecord<String, Object, Object> record = messageList.get(0);
-                    Map<Object, Object> messageMap = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(messageMap, new VoucherOrder(), true);
-                    handleVoucherOrder(voucherOrder);
-                    // ACK确认 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(QUEUE_NAME, "g1", record.getId());
-                }catch (Exception e){
-                    log.error("消息队列异常",e);
-                    handlePendingList();
-                }
-
-//                // 从阻塞队列中获取订单信息，并创建订单
-//                try{
-//                    VoucherOrder voucherOrder = orderTasks.take();
-//                    handleVoucherOrder(voucherOrder);
-//                } catch (Exception e) {
-//                    log.error("处理订单异常", e);
-//                }
-            }
-        }
-    }
-
-    // 处理pending状态的消息，通过XACK确认消息
-    private void handlePendingList (){
-        while(true){
-            try{
-                // 从pendingList中获取订单信息, XREADGROUP GROUP g1 c1 COUNT 1 STREAMS stream.orders 0
-                List<MapRecord<String, Object, Object>> messageList = stringRedisTemplate.opsForStream().read(
-                        Consumer.from("g1", "c1"),
-                        StreamReadOptions.empty().count(1),
-                        StreamOffset.create(QUEUE_NAME, ReadOffset.from("0"))
-                );
-                // 判断pendingList中的消息是否有效
-                if (messageList == null || messageList.isEmpty()) {
-                    // 没有消息需要确认
-                    break;
-                }
-                MapRecord<String, Object, Object> record = messageList.get(0);
-                Map<Object, Object> messageMap = record.getValue();
-                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(messageMap, new VoucherOrder(), true);
-                handleVoucherOrder(voucherOrder);
-                // 确认消息
-                stringRedisTemplate.opsForStream().acknowledge(QUEUE_NAME, "g1", record.getId());
-            }catch (Exception e){
-                log.error("pendingList异常", e);
-                // 这里不用重新调自己，直接进入下一次循环，再从pending List中取，只需要稍休眠，防止获取消息太频繁
-                try{
-                    Thread.sleep(50);
-                }catch (Exception ex){
-                    log.error("线程休眠失败", ex);
-                }
-            }
-        }
-    }
-
+    @Resource
+    private SoldOutVouchers soldOutVouchers;
+    @Resource
+    private SeckillStockLeases stockLeases;
+    @Resource
+    private SeckillStockShards stockShards;
+    @Resource
+    private SeckillProperties seckillProperties;
 
-    // 创建订单
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        // 使用Redisson
-        RLock lock = redissonClient.getLock("lock:order:"+userId);
-        boolean success = lock.tryLock();
-        if(!success){
-            log.error("一人只能下一单哦亲");
-        }
-        try {
-            // 获取锁成功，创建代理对象，调用第三方事务方法，防止事务失效
-            // todo: 这里为什么可以直接使用proxy
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            lock.unlock();
-        }
-    }
+    // 订单消息由SeckillOrderConsumer从stream.orders的各个分区读取后，调用createVoucherOrder写入数据库
 
     // 提前加载文件，判断秒杀券库存是否充足和是否下过单的lua脚本
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    // 返回 [结果码] ，库存不足时返回 [1, 分片的补货版本号]
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
     static{
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("order.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT.setResultType(List.class);
     }
 
+    // order.lua中库存的扣减方式：脚本扣redis中的库存、已经从其他分片拿到了库存、从本节点的租约中扣过
+    private static final String NOT_TAKEN = "0";
+    private static final String TAKEN = "1";
+    private static final String LEASED = "2";
+
     @Override
     // @Transactional   // 这里做了多次数据库修改，要添加事务
     // 使用悲观锁后，如果seckillVoucher加事务，会导致creatVoucherOrder无法第一时间提交
     public Result seckillVoucher(Long voucherId) {
+        // 不存在的优惠券直接拒绝，不生成订单id，也不执行lua脚本（脚本中库存为nil会报错）
+        if(!idBloomFilter.mightContain(RedisConstant.BLOOM_VOUCHER_KEY, voucherId)){
+            return Result.fail("优惠券不存在");
+        }
         Long userId = UserHolder.getUser().getId();
-        long orderId = redisIdWorker.nextId("order");
+        // 库存分片时在用户固定的分片上下单
+        int shard = stockShards.homeShard(voucherId, userId);
+        // 开启库存租约时先在本地扣这个分片租来的库存，lua脚本只判断一人一单并减少租约记录
+        boolean leased = stockLeases.enabled() && stockLeases.tryAcquire(voucherId, shard);
+        if(!leased && soldOutVouchers.isSoldOut(voucherId)){
+            // 已经售罄的直接在本地返回，不生成订单id，也不执行lua脚本
+            return Result.fail("库存不足");
+        }
+        long orderId = idGenerator.nextId("order");
 
-        // 执行lua脚本
-        Long result = null ;
+        // 从其他分片借来的库存，下单失败要还回去
+        int borrowed = -1;
+        List<Long> result = null ;
         try {
-            result = stringRedisTemplate.execute(
-                    SECKILL_SCRIPT,
-                    // stringRedisTemplate.execute这个方法，第二个参数是应该List集合，标识传入Lua脚本中的的 key，
-                    // 如果我们没有传key，那么直接使用Collections.emptyList()，而不是直接使用null，
-                    // 是因为在 stringRedisTemplate.execute 方法内部可能对参数进行了处理，如果传递 null 可能引发NPE异常
-                    Collections.emptyList(),
-                    voucherId.toString(),
-                    userId.toString(),
-                    String.valueOf(orderId)
-            );
+            result = executeSeckillScript(voucherId, userId, orderId, shard, leased ? LEASED : NOT_TAKEN);
+            if(result.get(0) == 3){
+                // 本节点的租约已经被当成下线节点收回，本地剩下的库存作废，改为直接扣redis中的库存
+                stockLeases.invalidate(voucherId, shard);
+                leased = false;
+                result = executeSeckillScript(voucherId, userId, orderId, shard, NOT_TAKEN);
+            }
+            // 自己的分片卖完了，从其他分片拿一个库存，再在自己的分片上下单（一人一单集合在自己的分片上）
+            if(result.get(0) == 1 && stockShards.shards(voucherId) > 1){
+                borrowed = stockShards.take(voucherId, 1, shard)[1];
+                if(borrowed >= 0){
+                    result = executeSeckillScript(voucherId, userId, orderId, shard, TAKEN);
+                    if(result.get(0) != 0){
+                        stockShards.giveBack(voucherId, borrowed, 1);
+                    }
+                }
+            }
         } catch (Exception e) {
             log.error("lua脚本执行失败", e);
+            if(leased){
+                stockLeases.release(voucherId, shard);
+            }
+            if(borrowed >= 0 && result != null && result.get(0) == 1){
+                // 借到库存后第二次执行脚本失败，result还是第一次的结果
+                stockShards.giveBack(voucherId, borrowed, 1);
+            }
             throw new RuntimeException(e);
         }
 
-        int r = result.intValue();  // 将Long类型转换为int类型
+        int r = result.get(0).intValue();  // 将Long类型转换为int类型
+        if(r==1){
+            // 库存不足，标记售罄并通知其他节点，带上脚本看到的补货版本号
+            soldOutVouchers.markSoldOut(voucherId, result.get(1));
+        }
+        if(r==2 && leased){
+            // 重复下单，本地扣的库存还回去
+            stockLeases.release(voucherId, shard);
+        }
         if(r!=0){
             return Result.fail(r==2?"不能重复下单":"库存不足");
         }
@@ -228,10 +175,8 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        // 将订单保存到阻塞队列中，等待线程处理
 //        orderTasks.add(voucherOrder);
 
-        // 获取锁代理对象，防止事务失效
-        IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
-        this.proxy = proxy;
-        return Result.ok();
+        // 返回订单id，客户端用它查询订单状态
+        return Result.ok(orderId);
 
 
 
@@ -282,46 +227,88 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
 
 
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Long> executeSeckillScript(Long voucherId, Long userId, long orderId, int shard, String stockMode) {
+        return (List<Long>) stringRedisTemplate.execute(
+                SECKILL_SCRIPT,
+                // 库存key、一人一单集合、订单stream、订单状态、租约记录和补货版本号，带相同的hash tag，集群模式下在同一个slot上
+                Arrays.asList(stockShards.stockKey(voucherId, shard), stockShards.orderKey(voucherId, shard),
+                        stockShards.streamKey(voucherId, shard, userId), stockShards.statusKey(voucherId, userId, orderId),
+                        stockShards.leaseKey(voucherId, shard), stockShards.epochKey(voucherId, shard)),
+                voucherId.toString(),
+                userId.toString(),
+                String.valueOf(orderId),
+                stockMode,
+                String.valueOf(seckillProperties.getOrderStatusTtlSeconds()),
+                stockLeases.instanceId()
+        );
     }
 
     // 实现用户下单
+    // 一人一单由唯一索引(user_id, voucher_id)保证：先INSERT IGNORE，写入成功才扣库存，不再先count查询
     @Transactional
     public Result createVoucherOrder(VoucherOrder voucherOrder) {
-        // 一人一单   查询数据库，看是否已经买过  todo:（这里查过的信息可以存到redis，防止恶意访问数据库
-        // todo: lua脚本已经判断过一次了，这里不需要判断了吧。。。
-        Long userId = voucherOrder.getUserId();  // 异步线程无法从ThreadLocal中获取userId，我们需要从voucherOrder中获取userId
-        Long voucherId = voucherOrder.getVoucherId();
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
-
-        if(count>0){
+        // 异步线程无法从ThreadLocal中获取userId，订单里已经带上了userId
+        int inserted = getBaseMapper().insertIgnoreBatch(Collections.singletonList(voucherOrder));
+        if (inserted == 0) {
+            // 同一用户已经买过，或者这条消息已经处理过（重复投递）
             return Result.fail("您已经购买过一次了");
         }
 
-
         // 库存充足，开抢
         // 乐观锁防止超卖，在CAS方法上优化————》库存大于0
         boolean success = seckillVoucherService.update()
                 .setSql("stock = stock - 1")  // 设置库存自减的原子操作
-                .eq("voucher_id", voucherId)
+                .eq("voucher_id", voucherOrder.getVoucherId())
                 .gt("stock", 0)   // gt是"greater than"的缩写，表示字段 > 值的查询条件
                 .update();
         if(!success){
+            // 订单已经插入，回滚掉
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
             return Result.fail("抢购失败");
         }
+        return Result.ok(voucherOrder.getId());
+    }
 
-//        // 创建抢购订单
-//        VoucherOrder voucherOrder = new VoucherOrder();
-//        long orderId = redisIdWorker.nextId("order"); // 获取订单id
-//        voucherOrder.setId(orderId);
-//        // UserHolder.getUser().getId();  // 获取当前的用户id
-//        voucherOrder.setUserId(userId);
-//        voucherOrder.setVoucherId(voucherId);   // 代金券的id(也就是逻辑外键)
-//        log.info("创建订单成功");
-//        save(voucherOrder);
-        success = this.save(voucherOrder);
-        if(!success){
-            throw new RuntimeException("创建订单失败");
+    /*
+    * 批量创建订单，整批在一个事务里提交
+    * 1.按优惠券分组，每组一条多行INSERT IGNORE，已经下过单的（包括批内重复和重复投递的消息）被唯一索引跳过
+    * 2.按实际写入的行数合并扣减库存：stock = stock - k，每个优惠券一条UPDATE
+    * 3.有行被跳过时，按订单id查出数据库里已有的订单：重复投递的消息之前已经写入，仍然算创建成功；
+    *   查不到的是同一用户已经用别的订单id买过，这些订单没有创建
+    * 任意一个优惠券库存不足就抛异常回滚整批，由调用方逐条重试
+    * 返回数据库中已有的订单id
+    * */
+    @Override
+    @Transactional
+    public Set<Long> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        Map<Long, List<VoucherOrder>> groups = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        Set<Long> created = new HashSet<>();
+        for (Map.Entry<Long, List<VoucherOrder>> entry : groups.entrySet()) {
+            List<VoucherOrder> orders = entry.getValue();
+            int k = getBaseMapper().insertIgnoreBatch(orders);
+            List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+            if (k == orders.size()) {
+                created.addAll(ids);
+            } else {
+                query().select("id").in("id", ids).list().forEach(order -> created.add(order.getId()));
+            }
+            if (k == 0) {
+                continue;
+            }
+            // 乐观锁条件变成 stock >= k
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + k)
+                    .eq("voucher_id", entry.getKey())
+                    .ge("stock", k)
+                    .update();
+            if (!success) {
+                throw new IllegalStateException("优惠券" + entry.getKey() + "库存不足" + k + "件，整批回滚");
+            }
         }
-        return Result.ok(voucherOrder.getId());
+        return created;
     }
 }
@@ -7,14 +7,27 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilter;
+import com.hmdp.utils.SeckillStockLeases;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SoldOutVouchers;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
-import static com.hmdp.constant.RedisConstant.SECKILL_STOCK_KEY;
+import static com.hmdp.constant.RedisConstant.BLOOM_SHOP_KEY;
+import static com.hmdp.constant.RedisConstant.BLOOM_VOUCHER_KEY;
+import static com.hmdp.constant.RedisConstant.CACHE_VOUCHER_LIST_KEY;
+import static com.hmdp.constant.RedisConstant.CACHE_VOUCHER_LIST_TTL;
 import static com.hmdp.constant.RedisConstant.SECKKILL_VOUCHER;
 
 /**
@@ -25,6 +38,7 @@ import static com.hmdp.constant.RedisConstant.SECKKILL_VOUCHER;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
@@ -32,13 +46,50 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate  stringRedisTemplate;
+    @Resource
+    private IdBloomFilter idBloomFilter;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private SoldOutVouchers soldOutVouchers;
+    @Resource
+    private SeckillStockShards stockShards;
+    @Resource
+    private SeckillStockLeases stockLeases;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 不存在的店铺直接返回空列表
+        if(!idBloomFilter.mightContain(BLOOM_SHOP_KEY, shopId)){
+            return Result.ok(Collections.emptyList());
+        }
+        // 查询优惠券信息，列表按数组缓存
+        Voucher[] vouchers = cacheClient.queryWithNullPassThrough(
+                shopId,
+                CACHE_VOUCHER_LIST_KEY,
+                CACHE_VOUCHER_LIST_TTL,
+                TimeUnit.MINUTES,
+                Voucher[].class,
+                id -> getBaseMapper().queryVoucherOfShop(id).toArray(new Voucher[0])
+        );
         // 返回结果
-        return Result.ok(vouchers);
+        return Result.ok(vouchers == null ? Collections.emptyList() : Arrays.asList(vouchers));
+    }
+
+    // 优惠券列表缓存的ETag，用于条件请求；不存在的店铺返回null，不访问redis
+    @Override
+    public String queryVoucherOfShopEtag(Long shopId) {
+        if(!idBloomFilter.mightContain(BLOOM_SHOP_KEY, shopId)){
+            return null;
+        }
+        return cacheClient.etag(cacheClient.key(CACHE_VOUCHER_LIST_KEY, shopId));
+    }
+
+    @Override
+    public void addVoucher(Voucher voucher) {
+        save(voucher);
+        // 店铺的优惠券列表变了
+        cacheClient.delete(cacheClient.key(CACHE_VOUCHER_LIST_KEY, voucher.getShopId()));
     }
 
     @Override
@@ -53,8 +104,65 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        // 把秒杀信息保存到Redis中
-        // todo 为什么只存储优惠券id  和  库存
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // redis在事务提交之后才写入，事务回滚时不会留下没有数据库记录的库存和布隆过滤器中的id
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                try {
+                    // 把秒杀信息保存到Redis中
+                    // todo 为什么只存储优惠券id  和  库存
+                    // 开启库存分片时平均分到各个分片上，每个分片一个订单stream
+                    stockShards.initStock(voucher.getId(), voucher.getStock(), voucher.getEndTime());
+                    // 新的优惠券id加入布隆过滤器
+                    idBloomFilter.add(BLOOM_VOUCHER_KEY, voucher.getId());
+                    // 店铺的优惠券列表变了
+                    cacheClient.delete(cacheClient.key(CACHE_VOUCHER_LIST_KEY, voucher.getShopId()));
+                } catch (Exception e) {
+                    // 数据库已经保存，redis的库存要手动补上
+                    log.error("秒杀券写入redis失败, voucherId = {}", voucher.getId(), e);
+                }
+            }
+        });
+    }
+
+    // 秒杀券补货：数据库和redis的库存都加上count，再清除所有节点的售罄标记
+    // redis在事务提交之后才修改，事务回滚时不会多出库存
+    @Override
+    @Transactional
+    public Result restockSeckillVoucher(Long voucherId, Integer count) {
+        Voucher voucher = getById(voucherId);
+        if (voucher == null) {
+            return Result.fail("优惠券不存在");
+        }
+        if (count == null || count <= 0) {
+            return Result.fail("补货数量必须大于0");
+        }
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("不是秒杀券");
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                try {
+                    stockShards.addStock(voucherId, count);
+                    // 顺便收回已下线节点租走没卖出的库存
+                    if (stockLeases.enabled()) {
+                        stockLeases.reclaim(voucherId);
+                    }
+                    // 先加库存再清除标记，清除之后的请求一定能看到新的库存
+                    soldOutVouchers.restocked(voucherId);
+                    // 列表中展示的库存变了
+                    cacheClient.delete(cacheClient.key(CACHE_VOUCHER_LIST_KEY, voucher.getShopId()));
+                } catch (Exception e) {
+                    // 数据库已经补货，redis的库存要手动补上
+                    log.error("秒杀券补货写入redis失败, voucherId = {}, count = {}", voucherId, count, e);
+                }
+            }
+        });
+        return Result.ok();
     }
 }
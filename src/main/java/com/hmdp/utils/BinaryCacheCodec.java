@@ -0,0 +1,73 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+
+// 基于Smile（二进制json）的编码，直接反序列化为目标类型，不经过中间的JSONObject
+public class BinaryCacheCodec implements CacheCodec {
+
+    public static final byte ID = 1;
+
+    private final ObjectMapper mapper = new ObjectMapper(new SmileFactory())
+            .registerModule(new JavaTimeModule())
+            // null字段不写入，减少体积
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            // 实体类加字段后，旧缓存仍然能读
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            return mapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new RuntimeException("缓存编码失败", e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, int length, Class<T> type) {
+        try {
+            return mapper.readValue(bytes, offset, length, type);
+        } catch (IOException e) {
+            throw new RuntimeException("缓存解码失败", e);
+        }
+    }
+
+    @Override
+    public <T> RedisData decodeRedisData(byte[] bytes, int offset, int length, Class<T> type) {
+        // 流式读取，data字段直接解析为目标类型，只解析一遍
+        try (JsonParser parser = mapper.getFactory().createParser(bytes, offset, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("不是RedisData格式");
+            }
+            RedisData redisData = new RedisData();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("expireTime".equals(field)) {
+                    redisData.setExpireTime(mapper.readValue(parser, LocalDateTime.class));
+                } else if ("data".equals(field)) {
+                    redisData.setData(mapper.readValue(parser, type));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return redisData;
+        } catch (IOException e) {
+            throw new RuntimeException("缓存解码失败", e);
+        }
+    }
+}
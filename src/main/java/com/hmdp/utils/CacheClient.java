@@ -1,85 +1,216 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.hmdp.config.CacheProperties;
 import com.hmdp.constant.RedisConstant;
-import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.RedisClusterNode;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
+@Slf4j
 @Component
 public class CacheClient {
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    // 缓存中的空值
+    private static final Object NULL_VALUE = new Object();
+    // 清理作废的旧代key时每批SCAN和UNLINK的数量
+    private static final int CLEANUP_BATCH = 500;
+    // 检查redis中到期的旧代清理任务的间隔（秒）
+    private static final long CLEANUP_CHECK_SECONDS = 30;
+    // 认领清理任务的脚本
+    private static final DefaultRedisScript<Long> CLEANUP_CLAIM_SCRIPT;
+
+    static {
+        CLEANUP_CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLEANUP_CLAIM_SCRIPT.setLocation(new ClassPathResource("generation_cleanup_claim.lua"));
+        CLEANUP_CLAIM_SCRIPT.setResultType(Long.class);
+    }
 
     private final StringRedisTemplate stringRedisTemplate;
+    // 缓存的value是二进制的（见CacheSerializer），用byte[]类型的template读写
+    private final RedisTemplate<String, byte[]> cacheRedisTemplate;
+    private final CacheSerializer serializer;
+    private final SingleFlight singleFlight;
+    // 异步重建共用的线程池
+    private final CacheRebuildScheduler rebuildScheduler;
+
+    // 本地一级缓存，存编码后的字节（和redis中的一样），每次命中解码出新的对象，调用方修改返回值不会影响其他请求
+    // 未开启时为null
+    private final LocalCache<byte[]> localCache;
+    // 默认的过期策略和按前缀配置的过期策略（前缀按长度倒序，先匹配最长的）
+    private final CacheProperties.Refresh defaultRefresh;
+    private final List<Map.Entry<String, CacheProperties.Refresh>> refreshPolicies;
+    // 每个key前缀当前的代数（generation），代数变化后旧key不再被访问，由后台任务删除
+    private final Map<String, Long> generations = new ConcurrentHashMap<>();
+    // 定时从redis同步代数，发布订阅的消息丢了（连接断开重连期间）也能追上；作废的旧代key也在这里清理
+    private final ScheduledExecutorService generationExecutor;
+    // 作废后等多久再清理旧代key，等所有节点都切换到新代（至少两个同步周期）
+    private final long cleanupDelaySeconds;
+    // 热点key探测，未开启时为null
+    private final HotKeyDetector hotKeyDetector;
+    // 热点key单独存放，不会被普通key挤出去，和一级缓存一样存编码后的字节，未开启热点探测时为null
+    private final LocalCache<byte[]> hotCache;
 
     // 构造注入，autowired可以省略(只有一个构造函数时)
-    public  CacheClient(StringRedisTemplate stringRedisTemplate) {
+    public  CacheClient(StringRedisTemplate stringRedisTemplate, RedisTemplate<String, byte[]> cacheRedisTemplate,
+                        CacheSerializer serializer, SingleFlight singleFlight,
+                        CacheRebuildScheduler rebuildScheduler, CacheProperties cacheProperties) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheRedisTemplate = cacheRedisTemplate;
+        this.serializer = serializer;
+        this.singleFlight = singleFlight;
+        this.rebuildScheduler = rebuildScheduler;
+        CacheProperties.Local local = cacheProperties.getLocal();
+        this.localCache = local.isEnabled()
+                ? new LocalCache<>(local.getMaximumSize(), TimeUnit.SECONDS.toMillis(local.getExpireSeconds()))
+                : null;
+        this.defaultRefresh = cacheProperties.getRefresh();
+        this.refreshPolicies = new ArrayList<>(cacheProperties.getRefreshPolicies().entrySet());
+        this.refreshPolicies.sort((a, b) -> b.getKey().length() - a.getKey().length());
+        CacheProperties.HotKey hotKey = cacheProperties.getHotKey();
+        if(hotKey.isEnabled()){
+            this.hotKeyDetector = new HotKeyDetector(hotKey.getSampleEvery(),
+                    TimeUnit.SECONDS.toMillis(hotKey.getWindowSeconds()), hotKey.getThreshold(), hotKey.getTopK());
+            this.hotCache = new LocalCache<>(hotKey.getTopK(), TimeUnit.SECONDS.toMillis(hotKey.getPinSeconds()));
+        }else{
+            this.hotKeyDetector = null;
+            this.hotCache = null;
+        }
+        this.generationExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cache-generation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long syncSeconds = cacheProperties.getGenerationSyncSeconds();
+        this.cleanupDelaySeconds = Math.max(60, syncSeconds * 2);
+        if(syncSeconds > 0){
+            generationExecutor.scheduleWithFixedDelay(this::syncGenerations, syncSeconds, syncSeconds, TimeUnit.SECONDS);
+        }
+        generationExecutor.scheduleWithFixedDelay(this::runDueCleanups, CLEANUP_CHECK_SECONDS, CLEANUP_CHECK_SECONDS,
+                TimeUnit.SECONDS);
     }
 
+    @PreDestroy
+    public void stop(){
+        generationExecutor.shutdownNow();
+    }
 
-    // 将任意java对象序列化为json并存储到String类型的key中，并设置TTL过期时间
+
+    // 将任意java对象序列化后存储到String类型的key中，并设置TTL过期时间
+    // TTL会按key前缀的策略随机增加一点，避免同时写入的key同时过期
     public void set(String key, Object value, Long expireTime, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), expireTime, unit);  // 这里不需要转时间单位，因为是自由设置过期时间
+        set(key, value, expireTime, unit, 0);
+    }
+
+    // rebuildMillis是这次从数据库加载花的时间，大于0时写入头部，读取时据此提前刷新
+    // 返回写入的字节，调用方放入本地缓存时顺便记下ETag
+    private byte[] set(String key, Object value, Long expireTime, TimeUnit unit, long rebuildMillis){
+        CacheProperties.Refresh policy = refreshPolicy(key);
+        long ttlMillis = jitter(unit.toMillis(expireTime), policy);
+        byte[] bytes = policy.getBeta() > 0 && rebuildMillis > 0
+                ? serializer.serializeWithRefresh(value, System.currentTimeMillis() + ttlMillis,
+                        (int) Math.min(rebuildMillis, Integer.MAX_VALUE))
+                : serializer.serialize(value);
+        cacheRedisTemplate.opsForValue().set(key, bytes, ttlMillis, TimeUnit.MILLISECONDS);
+        return bytes;
     }
 
-    // 逻辑过期
+    // 逻辑过期，key本身不设置TTL，由逻辑过期时间决定何时重建
+    // 过期时间以毫秒时间戳写在数据头部，读取时不用解析数据就能判断是否过期
+    // 整个命名空间作废后留下的旧key由bumpGeneration提交的后台任务删除
     public void setWithLoginExpired(String key, Object value, Long expireTime, TimeUnit unit){
-        // 要封装为RedisData对象
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(expireTime))); // 这里不能确定是什么时间单位，所以需要转成秒
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData), expireTime, unit);
+        writeWithLoginExpired(key, value, expireTime, unit);
+    }
+
+    private byte[] writeWithLoginExpired(String key, Object value, Long expireTime, TimeUnit unit){
+        long expireAt = System.currentTimeMillis() + unit.toMillis(expireTime);
+        byte[] bytes = serializer.serialize(value, expireAt);
+        cacheRedisTemplate.opsForValue().set(key, bytes);
+        return bytes;
+    }
+
+    // 批量写入逻辑过期的数据，一个pipeline发送，用于缓存预热
+    // 预热的key是同一时刻写入的，逻辑过期时间按key前缀的策略各自随机增加一点，不会同时过期、同时重建
+    public void setWithLoginExpiredBatch(Map<String, ?> values, Long expireTime, TimeUnit unit){
+        if(values.isEmpty()){
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long ttlMillis = unit.toMillis(expireTime);
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            values.forEach((key, value) -> connection.stringCommands().set(
+                    key.getBytes(StandardCharsets.UTF_8),
+                    serializer.serialize(value, now + jitter(ttlMillis, refreshPolicy(key))),
+                    Expiration.persistent(), RedisStringCommands.SetOption.upsert()));
+            return null;
+        });
     }
 
     // 根据指定的key查询缓存，并且反序列化为指定类型，利用  缓存空值  的方式解决缓存穿透问题
     public <T, ID> T queryWithNullPassThrough(ID id, String keyPrefix, Long expireTime, TimeUnit unit,
                                             Class<T> type,
                                             Function<ID, T> dbfallback){
-        String key = keyPrefix+id;
-        // 从缓存中查找
-        String Json = stringRedisTemplate.opsForValue().get(key); //   redis中存储的数据是json字符串
-
-        // 如果存在
-        if(StrUtil.isNotBlank(Json)){   // 只有是有效（非空非空白）字符 时才为true
-            // 缓存中存在，返回
-            return JSONUtil.toBean(Json, type); // json字符串转对象
+        String key = key(keyPrefix, id);
+        // 先查本地缓存
+        T local = getLocal(key, type);
+        if(local != null){
+            return local;
         }
-        // 如果不存在
-        if(Json != null){   // 也就是为 “” 时（不是null），如果为null，可能是第一次查询而redis还没有缓存数据
-            return null;
+        // 从缓存中查找，存在则返回（快过期时可能触发一次异步的提前刷新）
+        Object cached = readCache(key, type, () -> dbfallback.apply(id), expireTime, unit);
+        if(cached != null){
+            // 空值说明数据库中也不存在
+            return cached == NULL_VALUE ? null : type.cast(cached);
         }
 
         // 查询数据库
         // 因为不知道改查询那个类型的数据，也就不知道调用哪个方法
         // 所以让调用者传递逻辑进来
         // 函数式编程
+        long begin = System.currentTimeMillis();
         T t = dbfallback.apply(id);  // 接收类型ID的参数，返回T类型结果
         // 如果不存在，向redis中写入空值，解决缓存穿透问题
         if(t == null){
             // 存入空值，代表缓存中不存在该数据，防止缓存穿透
-            // todo 用布隆过滤器会更好  !!!  要优化
+            // 大部分不存在的id已经被布隆过滤器（IdBloomFilter）拦截，走到这里的只有少量误判
             // todo 缓存雪崩
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstant.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            setNull(key);
             return null;
         }
-        // 写入缓存，将shop对象转为json字符串
-        // 设置过期时间
-        stringRedisTemplate.opsForValue().set(
-                key,
-                JSONUtil.toJsonStr(t),
-                expireTime,
-                unit
-        );
+        // 写入缓存，设置过期时间，同时记录重建耗时
+        putLocal(key, t, set(key, t, expireTime, unit, System.currentTimeMillis() - begin));
         return t;
     }
 
@@ -88,65 +219,591 @@ public class CacheClient {
     public <T, ID> T queryWithLoginExpired(String keyPrefix, ID id, Long expireTime, TimeUnit unit,
                                            Function<ID, T> dbfallback,
                                            Class<T> type){
-        String key = keyPrefix + id;
+        String key = key(keyPrefix, id);
+        // 先查本地缓存，本地缓存只保存未逻辑过期的数据
+        T local = getLocal(key, type);
+        if(local != null){
+            return local;
+        }
         // 从缓存中查找
-        String Json = stringRedisTemplate.opsForValue().get(key); // redis中存储的数据是json字符串
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
 
-        // 如果为空，直接返回null
-        // 理论上是不会存在未命中的情况的，因为redis的数据是一直存在的，只是有过期时间，这里是为了代码健壮性
-        if(StrUtil.isBlank(Json)){
+        // 未命中：没有预热，或者整个命名空间刚被作废（代数变化），同一节点合并成一次加载
+        if(bytes == null){
+            return singleFlight.execute(key, () -> loadWithLoginExpired(key, id, expireTime, unit, dbfallback));
+        }
+        // 空值，数据库中不存在
+        if(bytes.length == 0){
             return null;
         }
 
-        // 将当前的json字符串转对象
-        /*
-        redisData.getData()返回的是Object类型，实际存储的是JSONObject结构（通过(JSONObject)强制转换可以看出）。
-        直接强制转换为Shop会导致ClassCastException，因为JSONObject和Shop没有继承关系。
-        JSONUtil.toBean()方法需要明确的目标类型参数才能正确反序列化。
-         */
-        RedisData redisData = JSONUtil.toBean(Json, RedisData.class);  // 先将Json转为RedisData对象
-        T t  = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        T t;
+        long expireAt = CacheSerializer.logicalExpireAt(bytes);
+        if(expireAt != CacheSerializer.NOT_LOGICAL){
+            // 过期时间在头部，数据只解析一次，过期时也直接返回这个对象
+            t = serializer.deserialize(bytes, type);
+        }else{
+            // 兼容旧格式：过期时间和数据一起编码在RedisData中
+            RedisData redisData = serializer.deserializeRedisData(bytes, type);
+            t = type.cast(redisData.getData());
+            expireAt = toEpochMilli(redisData.getExpireTime());
+        }
 
-        // 判断是否过期
-        LocalDateTime time = redisData.getExpireTime();
-        if(time.isAfter(LocalDateTime.now())){
-            // 未过期，直接返回
+        // 判断是否过期，直接比较毫秒时间戳
+        if(expireAt > System.currentTimeMillis()){
+            // 未过期，放入本地缓存后直接返回
+            putLocal(key, t, bytes);
             return t;
         }
 
-        String lockKey = RedisConstant.LOCK_SHOP_KEY+id;
-        // 利用互斥锁，开启新线程
-        try {
-            boolean isLock = trylock(lockKey);
-            // doubleCheck
-            Json = stringRedisTemplate.opsForValue().get(key);
-            if(StrUtil.isNotBlank(Json)){
-                redisData = JSONUtil.toBean(Json, RedisData.class);  // 先将Json转为RedisData对象
-                LocalDateTime latestExpireTime = redisData.getExpireTime();
-                if(latestExpireTime.isAfter(LocalDateTime.now())){
+        // 已过期：同一节点只有一个线程去抢分布式锁并重建，其余线程不访问redis，直接返回旧数据
+        rebuildAsync(key, type, () -> dbfallback.apply(id), expireTime, unit);
+        return t;
+    }
+
+    private <T, ID> T loadWithLoginExpired(String key, ID id, Long expireTime, TimeUnit unit, Function<ID, T> dbfallback){
+        T t = dbfallback.apply(id);
+        if(t == null){
+            setNull(key);
+            return null;
+        }
+        putLocal(key, t, writeWithLoginExpired(key, t, expireTime, unit));
+        return t;
+    }
+
+    /*
+    * 批量查询：一次MGET查redis，未命中的id用一次批量查询从数据库加载，再用pipeline一次性写回redis
+    * dbBatchFallback：传入未命中的id，返回 id -> 对象，数据库中不存在的id不放入map（会写入空值）
+    * 返回 id -> 对象，按传入id的顺序，不存在的id不在结果中
+    * 回填时写入的是普通的TTL数据，逻辑过期的前缀要用queryBatchWithLoginExpired
+    * */
+    public <T, ID> Map<ID, T> queryBatch(String keyPrefix, Collection<ID> ids, Class<T> type,
+                                         Function<Collection<ID>, Map<ID, T>> dbBatchFallback,
+                                         Long expireTime, TimeUnit unit){
+        return queryBatch(keyPrefix, ids, type, dbBatchFallback, expireTime, unit, false);
+    }
+
+    /*
+    * 批量查询逻辑过期的key，和queryWithLoginExpired读写同一个命名空间
+    * 回填时写入带逻辑过期时间的数据；已经逻辑过期的照样返回旧数据，并逐个提交异步重建
+    * */
+    public <T, ID> Map<ID, T> queryBatchWithLoginExpired(String keyPrefix, Collection<ID> ids, Class<T> type,
+                                                         Function<Collection<ID>, Map<ID, T>> dbBatchFallback,
+                                                         Long expireTime, TimeUnit unit){
+        return queryBatch(keyPrefix, ids, type, dbBatchFallback, expireTime, unit, true);
+    }
+
+    private <T, ID> Map<ID, T> queryBatch(String keyPrefix, Collection<ID> ids, Class<T> type,
+                                          Function<Collection<ID>, Map<ID, T>> dbBatchFallback,
+                                          Long expireTime, TimeUnit unit, boolean logical){
+        Map<ID, T> result = new LinkedHashMap<>();
+        if(ids == null || ids.isEmpty()){
+            return result;
+        }
+        // 去重，先查本地缓存
+        List<ID> remoteIds = new ArrayList<>();
+        for(ID id : new LinkedHashSet<>(ids)){
+            T local = getLocal(key(keyPrefix, id), type);
+            // 先占位，保证结果顺序和传入的一致
+            result.put(id, local);
+            if(local == null){
+                remoteIds.add(id);
+            }
+        }
+        if(remoteIds.isEmpty()){
+            return result;
+        }
+        // 一次MGET
+        List<String> keys = new ArrayList<>(remoteIds.size());
+        for(ID id : remoteIds){
+            keys.add(key(keyPrefix, id));
+        }
+        List<byte[]> values = cacheRedisTemplate.opsForValue().multiGet(keys);
+        List<ID> missIds = new ArrayList<>();
+        for(int i = 0; i < remoteIds.size(); i++){
+            ID id = remoteIds.get(i);
+            byte[] bytes = values == null ? null : values.get(i);
+            // 旧格式的数据分不清是不是RedisData，当作未命中，回填时会覆盖成新格式
+            if(bytes == null || (!CacheSerializer.isEmpty(bytes)
+                    && CacheSerializer.logicalExpireAt(bytes) == CacheSerializer.NOT_LOGICAL)){
+                missIds.add(id);
+            }else if(CacheSerializer.isEmpty(bytes)){
+                // 空值，数据库中也不存在
+                result.remove(id);
+            }else{
+                T t = serializer.deserialize(bytes, type);
+                result.put(id, t);
+                if(logical && CacheSerializer.logicalExpireAt(bytes) <= System.currentTimeMillis()){
+                    // 已经逻辑过期，不放入本地缓存，异步重建
+                    rebuildAsync(keys.get(i), type, () -> loadOne(dbBatchFallback, id), expireTime, unit);
+                }else{
+                    putLocal(keys.get(i), t, bytes);
+                }
+            }
+        }
+        if(missIds.isEmpty()){
+            return result;
+        }
+        // 未命中的一次性查数据库
+        Map<ID, T> loaded = dbBatchFallback.apply(missIds);
+        long ttlMillis = unit.toMillis(expireTime);
+        long expireAt = System.currentTimeMillis() + ttlMillis;
+        Map<String, byte[]> backfill = new HashMap<>(missIds.size());
+        for(ID id : missIds){
+            T t = loaded == null ? null : loaded.get(id);
+            String key = key(keyPrefix, id);
+            if(t == null){
+                result.remove(id);
+                backfill.put(key, new byte[0]);
+            }else{
+                result.put(id, t);
+                byte[] bytes = logical ? serializer.serialize(t, expireAt) : serializer.serialize(t);
+                putLocal(key, t, bytes);
+                backfill.put(key, bytes);
+            }
+        }
+        // pipeline回填，每个key的TTL不同（空值的TTL更短，且都有随机抖动），所以不能用MSET
+        // 逻辑过期的数据和setWithLoginExpired写入的一样，由头部的逻辑过期时间决定何时重建
+        long nullTtlMillis = TimeUnit.MINUTES.toMillis(RedisConstant.CACHE_NULL_TTL);
+        CacheProperties.Refresh policy = refreshPolicy(keyPrefix);
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            backfill.forEach((key, bytes) -> connection.stringCommands().set(
+                    key.getBytes(StandardCharsets.UTF_8),
+                    bytes,
+                    bytes.length == 0 ? Expiration.milliseconds(jitter(nullTtlMillis, policy))
+                            : logical ? Expiration.persistent()
+                            : Expiration.milliseconds(jitter(ttlMillis, policy)),
+                    RedisStringCommands.SetOption.upsert()));
+            return null;
+        });
+        return result;
+    }
+
+    // 异步重建单个key时复用批量加载的逻辑
+    private static <T, ID> T loadOne(Function<Collection<ID>, Map<ID, T>> dbBatchFallback, ID id){
+        Map<ID, T> loaded = dbBatchFallback.apply(Collections.singletonList(id));
+        return loaded == null ? null : loaded.get(id);
+    }
+
+    // 根据指定的key查询缓存，利用  互斥锁  的方式解决缓存击穿问题（同时缓存空值解决缓存穿透）
+    public <T, ID> T queryWithMutex(String keyPrefix, ID id, Long expireTime, TimeUnit unit,
+                                    Class<T> type,
+                                    Function<ID, T> dbfallback){
+        String key = key(keyPrefix, id);
+        T local = getLocal(key, type);
+        if(local != null){
+            return local;
+        }
+        Object cached = readCache(key, type, () -> dbfallback.apply(id), expireTime, unit);
+        if(cached != null){
+            return cached == NULL_VALUE ? null : type.cast(cached);
+        }
+        // 未命中：同一节点的并发请求合并为一次重建，只有领头的线程去抢分布式锁，其他线程等待它的结果
+        return singleFlight.execute(key, () -> rebuildWithMutex(key, id, expireTime, unit, type, dbfallback));
+    }
+
+    private <T, ID> T rebuildWithMutex(String key, ID id, Long expireTime, TimeUnit unit,
+                                       Class<T> type, Function<ID, T> dbfallback){
+        String lockKey = RedisConstant.LOCK_KEY_PREFIX + key;
+        while(true){
+            if(trylock(lockKey)){
+                try {
+                    // doubleCheck 拿到锁后再查一次，可能其他节点刚刚重建完
+                    Object cached = readCache(key, type);
+                    if(cached != null){
+                        return cached == NULL_VALUE ? null : type.cast(cached);
+                    }
+                    long begin = System.currentTimeMillis();
+                    T t = dbfallback.apply(id);
+                    if(t == null){
+                        setNull(key);
+                        return null;
+                    }
+                    putLocal(key, t, set(key, t, expireTime, unit, System.currentTimeMillis() - begin));
+                    return t;
+                } finally {
                     unlock(lockKey);
-                    return JSONUtil.toBean((JSONObject) redisData.getData(), type);  // 再转为Shop对象
                 }
             }
-            if(isLock){
-                // 获取锁成功，开启独立线程，实现缓存重建
-                CACHE_REBUILD_EXECUTOR.submit(() -> {
-                    try {
-                        // 去数据库查询数据，上面未未查询数据库，这里要添加逻辑
-                        // todo ：这里是新建对象还是对对象重新赋值？
-                        T newT = dbfallback.apply(id);   // todo：这是什么操作？？？
-                        this.setWithLoginExpired(key, newT, expireTime, unit);
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
+            // 其他节点正在重建，休眠一段时间后重新查询缓存
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            Object cached = readCache(key, type);
+            if(cached != null){
+                return cached == NULL_VALUE ? null : type.cast(cached);
+            }
+        }
+    }
+
+    // 读取redis中的缓存：命中返回对象（并放入本地缓存），空值返回NULL_VALUE，未命中返回null
+    private <T> Object readCache(String key, Class<T> type){
+        return readCache(key, type, null, null, null);
+    }
+
+    // loader不为空时，命中的数据快到期会按概率提前异步刷新
+    private <T> Object readCache(String key, Class<T> type, Supplier<T> loader, Long expireTime, TimeUnit unit){
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        if(bytes == null){
+            return null;
+        }
+        if(CacheSerializer.isEmpty(bytes)){
+            return NULL_VALUE;
+        }
+        T t = serializer.deserialize(bytes, type);
+        putLocal(key, t, bytes);
+        if(loader != null && shouldRefreshEarly(key, bytes)){
+            refreshAsync(key, loader, expireTime, unit);
+        }
+        return t;
+    }
+
+    /*
+    * XFetch：重建越慢、离过期越近，提前刷新的概率越大
+    * now - rebuildMillis * beta * ln(rand) >= 过期时间 时刷新，ln(rand) < 0
+    * 大部分读请求不会触发，只有少数请求在过期前把数据刷新掉，数据库不会在过期时同时收到一波请求
+    * */
+    private boolean shouldRefreshEarly(String key, byte[] bytes){
+        long deadline = CacheSerializer.refreshDeadline(bytes);
+        if(deadline < 0){
+            return false;
+        }
+        double beta = refreshPolicy(key).getBeta();
+        double random = 1 - ThreadLocalRandom.current().nextDouble();
+        return System.currentTimeMillis() - CacheSerializer.rebuildMillis(bytes) * beta * Math.log(random) >= deadline;
+    }
+
+    // 提前刷新，同一个key在本节点同一时间只会有一个刷新任务
+    private <T> void refreshAsync(String key, Supplier<T> loader, Long expireTime, TimeUnit unit){
+        rebuildScheduler.submit("refresh:" + key, priorityOf(key), () -> {
+            long begin = System.currentTimeMillis();
+            T t = loader.get();
+            if(t == null){
+                setNull(key);
+                evictLocal(key);
+                return;
+            }
+            putLocal(key, t, set(key, t, expireTime, unit, System.currentTimeMillis() - begin));
+        });
+    }
+
+    // 重建的优先级：越热的key越先重建
+    private long priorityOf(String key){
+        return hotKeyDetector == null ? 0 : hotKeyDetector.estimate(key);
+    }
+
+    // 写入空值，代表数据库中不存在该数据，防止缓存穿透
+    private void setNull(String key){
+        long ttlMillis = jitter(TimeUnit.MINUTES.toMillis(RedisConstant.CACHE_NULL_TTL), refreshPolicy(key));
+        cacheRedisTemplate.opsForValue().set(key, new byte[0], ttlMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // 按key前缀找到过期策略，没有配置时使用默认策略
+    private CacheProperties.Refresh refreshPolicy(String key){
+        for(Map.Entry<String, CacheProperties.Refresh> policy : refreshPolicies){
+            if(key.startsWith(policy.getKey())){
+                return policy.getValue();
+            }
+        }
+        return defaultRefresh;
+    }
+
+    // TTL随机增加 0 ~ jitter 倍
+    private static long jitter(long ttlMillis, CacheProperties.Refresh policy){
+        if(policy.getJitter() <= 0){
+            return ttlMillis;
+        }
+        return ttlMillis + (long) (ttlMillis * policy.getJitter() * ThreadLocalRandom.current().nextDouble());
+    }
+
+    // 异步重建逻辑过期的缓存，同一个key在本节点同一时间只会有一个重建任务，也只会发出一次加锁请求
+    private <T> void rebuildAsync(String key, Class<T> type, Supplier<T> loader, Long expireTime, TimeUnit unit){
+        rebuildScheduler.submit(key, priorityOf(key), () -> {
+            String lockKey = RedisConstant.LOCK_KEY_PREFIX + key;
+            if(!trylock(lockKey)){
+                // 其他节点正在重建
+                return;
+            }
+            try {
+                // doubleCheck 拿到锁后再判断一次是否已经被其他节点重建
+                byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+                if(bytes != null && bytes.length > 0 && logicalExpireAt(bytes, type) > System.currentTimeMillis()){
+                    return;
+                }
+                T newT = loader.get();
+                this.setWithLoginExpired(key, newT, expireTime, unit);
+            } finally {
+                unlock(lockKey);
+            }
+        });
+    }
+
+    // 读取逻辑过期时间，新格式只读头部，旧格式需要解析RedisData
+    private <T> long logicalExpireAt(byte[] bytes, Class<T> type){
+        long expireAt = CacheSerializer.logicalExpireAt(bytes);
+        if(expireAt != CacheSerializer.NOT_LOGICAL){
+            return expireAt;
+        }
+        return toEpochMilli(serializer.deserializeRedisData(bytes, type).getExpireTime());
+    }
+
+    private static long toEpochMilli(LocalDateTime time){
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    // 拼接缓存key：前缀 + id，前缀被作废过时中间再加上代数，例如 cache:shop:g2:1
+    // 代数为0时和原来的key完全一样
+    public String key(String keyPrefix, Object id){
+        long generation = generation(keyPrefix);
+        return generation == 0 ? keyPrefix + id : keyPrefix + "g" + generation + ":" + id;
+    }
+
+    /*
+    * 作废整个命名空间：代数加1，之后所有节点都使用新的key，请求路径上不需要SCAN + DEL
+    * 逻辑过期的key没有TTL，旧代的key要主动删除：等所有节点都切换后，后台SCAN旧代的key并UNLINK
+    * 清理任务记在redis的cache:generation:cleanup中，任意节点到期后认领执行，执行作废的节点重启也不会丢
+    * */
+    public long bumpGeneration(String keyPrefix){
+        Long generation = stringRedisTemplate.opsForHash().increment(RedisConstant.CACHE_GENERATION_KEY, keyPrefix, 1);
+        generations.merge(keyPrefix, generation, Math::max);
+        stringRedisTemplate.convertAndSend(RedisConstant.CACHE_GENERATION_CHANNEL, keyPrefix + "|" + generation);
+        // 到期时间用redis服务器的时间，不受各节点时钟偏差影响
+        stringRedisTemplate.opsForZSet().add(RedisConstant.CACHE_GENERATION_CLEANUP_KEY, keyPrefix + "|" + (generation - 1),
+                redisTime() + TimeUnit.SECONDS.toMillis(cleanupDelaySeconds));
+        return generation;
+    }
+
+    // 认领并执行所有到期的清理任务，执行成功后删除任务；失败的任务到了重新认领的时间再由任意节点执行
+    private void runDueCleanups(){
+        try {
+            long now = redisTime();
+            Set<String> due = stringRedisTemplate.opsForZSet()
+                    .rangeByScore(RedisConstant.CACHE_GENERATION_CLEANUP_KEY, 0, now);
+            if(due == null){
+                return;
+            }
+            for(String task : due){
+                Long claimed = stringRedisTemplate.execute(CLEANUP_CLAIM_SCRIPT,
+                        Collections.singletonList(RedisConstant.CACHE_GENERATION_CLEANUP_KEY), task,
+                        String.valueOf(now), String.valueOf(now + TimeUnit.SECONDS.toMillis(cleanupDelaySeconds)));
+                if(claimed == null || claimed != 1L){
+                    continue;
+                }
+                int index = task.lastIndexOf('|');
+                if(cleanupGeneration(task.substring(0, index), Long.parseLong(task.substring(index + 1)))){
+                    stringRedisTemplate.opsForZSet().remove(RedisConstant.CACHE_GENERATION_CLEANUP_KEY, task);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("检查旧代缓存的清理任务失败", e);
+        }
+    }
+
+    private long redisTime(){
+        Long time = stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.serverCommands().time());
+        return time == null ? System.currentTimeMillis() : time;
+    }
+
+    // 删除某一代的所有key；第0代的key没有代数标记，前缀后面还有冒号的（更新的代、其他用途的key）要跳过
+    // 返回是否清理成功
+    private boolean cleanupGeneration(String keyPrefix, long generation){
+        String pattern = generation == 0 ? keyPrefix + "*" : keyPrefix + "g" + generation + ":*";
+        int skipAfter = generation == 0 ? keyPrefix.length() : -1;
+        ScanOptions options = ScanOptions.scanOptions().match(pattern).count(CLEANUP_BATCH).build();
+        try {
+            Long removed = cacheRedisTemplate.execute((RedisCallback<Long>) connection -> {
+                long count = 0;
+                if(connection instanceof RedisClusterConnection){
+                    RedisClusterConnection cluster = (RedisClusterConnection) connection;
+                    for(RedisClusterNode node : cluster.clusterGetNodes()){
+                        if(node.isMaster()){
+                            count += unlinkAll(connection, cluster.scan(node, options), skipAfter);
+                        }
                     }
-                });
+                }else{
+                    count += unlinkAll(connection, connection.scan(options), skipAfter);
+                }
+                return count;
+            });
+            log.info("清理缓存前缀{}第{}代的key{}个", keyPrefix, generation, removed);
+            return true;
+        } catch (Exception e) {
+            log.error("清理缓存前缀{}第{}代的key失败", keyPrefix, generation, e);
+            return false;
+        }
+    }
+
+    private static long unlinkAll(RedisConnection connection, Cursor<byte[]> cursor, int skipAfter){
+        long count = 0;
+        try (Cursor<byte[]> keys = cursor) {
+            List<byte[]> batch = new ArrayList<>(CLEANUP_BATCH);
+            while(keys.hasNext()){
+                byte[] key = keys.next();
+                if(skipAfter >= 0 && new String(key, StandardCharsets.UTF_8).indexOf(':', skipAfter) >= 0){
+                    continue;
+                }
+                batch.add(key);
+                if(batch.size() >= CLEANUP_BATCH){
+                    count += unlink(connection, batch);
+                }
             }
+            count += unlink(connection, batch);
+        } catch (IOException e) {
+            log.warn("关闭SCAN游标失败", e);
+        }
+        return count;
+    }
+
+    private static long unlink(RedisConnection connection, List<byte[]> batch){
+        if(batch.isEmpty()){
+            return 0;
+        }
+        Long removed = connection.keyCommands().unlink(batch.toArray(new byte[0][]));
+        batch.clear();
+        return removed == null ? 0 : removed;
+    }
+
+    // 收到其他节点的代数变化，消息格式为 前缀|代数
+    public void onGenerationMessage(String message){
+        int index = message.lastIndexOf('|');
+        if(index < 0){
+            return;
+        }
+        generations.merge(message.substring(0, index), Long.valueOf(message.substring(index + 1)), Math::max);
+    }
+
+    // HGETALL全量同步代数，只会变大；本节点没用过的前缀也一起记下，用到时不用再查redis
+    private void syncGenerations(){
+        try {
+            Map<Object, Object> all = stringRedisTemplate.opsForHash().entries(RedisConstant.CACHE_GENERATION_KEY);
+            all.forEach((prefix, generation) -> {
+                long value = Long.parseLong(generation.toString());
+                Long old = generations.get(prefix.toString());
+                generations.merge(prefix.toString(), value, Math::max);
+                if(old != null && old < value){
+                    log.info("缓存前缀{}的代数从{}同步为{}，发布订阅消息可能丢失", prefix, old, value);
+                }
+            });
         } catch (Exception e) {
-            throw new RuntimeException(e);
-        }finally {
-            unlock(lockKey);
+            log.warn("同步缓存代数失败", e);
         }
-        return t;
+    }
+
+    // 第一次用到某个前缀时从redis读取代数，之后由发布订阅和定时同步更新
+    // 在computeIfAbsent外面读redis，不会在map的锁里做网络请求、卡住同一个桶上的其他前缀
+    private long generation(String keyPrefix){
+        Long cached = generations.get(keyPrefix);
+        if(cached != null){
+            return cached;
+        }
+        Object generation = stringRedisTemplate.opsForHash().get(RedisConstant.CACHE_GENERATION_KEY, keyPrefix);
+        long loaded = generation == null ? 0L : Long.parseLong(generation.toString());
+        // 读redis期间可能已经收到了更新的代数，取较大的
+        return generations.merge(keyPrefix, loaded, Math::max);
+    }
+
+    // 删除缓存，并通知所有节点删除本地缓存
+    public void delete(String key){
+        stringRedisTemplate.delete(key);
+        evictLocal(key);
+        // 本节点也会收到这条消息，重复删除没有影响
+        stringRedisTemplate.convertAndSend(RedisConstant.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    // 只删除本节点的本地缓存，由失效消息的监听器调用
+    public void evictLocal(String key){
+        if(localCache != null){
+            localCache.invalidate(key);
+        }
+        if(hotCache != null){
+            hotCache.invalidate(key);
+        }
+    }
+
+    // 本地缓存的命中、未命中、淘汰次数
+    public Map<String, Object> localStats(){
+        if(localCache == null){
+            return Collections.singletonMap("enabled", false);
+        }
+        return localCache.stats();
+    }
+
+    // 当前的热点key和各前缀的访问次数
+    public Map<String, Object> hotKeys(){
+        Map<String, Object> result = new LinkedHashMap<>();
+        if(hotKeyDetector == null){
+            return result;
+        }
+        result.put("topKeys", hotKeyDetector.topKeys());
+        result.put("prefixes", hotKeyDetector.prefixCounts());
+        result.put("pinned", hotCache.stats());
+        return result;
+    }
+
+    // 所有查询都会先经过这里，顺便记录访问次数
+    private <T> T getLocal(String key, Class<T> type){
+        Object value = null;
+        if(hotKeyDetector != null && hotKeyDetector.record(key)){
+            value = decodeLocal(key, hotCache.get(key), type);
+        }
+        if(value == null && localCache != null){
+            value = decodeLocal(key, localCache.get(key), type);
+        }
+        // 同一个key理论上只会存一种类型，这里防御一下
+        return type.isInstance(value) ? type.cast(value) : null;
+    }
+
+    // 解码本地缓存中的字节，解码失败（类型不对）时删除这个key，当作未命中
+    private <T> T decodeLocal(String key, byte[] bytes, Class<T> type){
+        if(bytes == null){
+            return null;
+        }
+        try {
+            return serializer.deserialize(bytes, type);
+        } catch (Exception e) {
+            log.warn("本地缓存的数据无法解码为{}, key = {}", type.getSimpleName(), key, e);
+            evictLocal(key);
+            return null;
+        }
+    }
+
+    // bytes是redis中对应的数据，从头部取出ETag一起保存
+    // 本地缓存直接保存这份字节；旧格式的数据（没有头部，可能是RedisData）重新编码一份
+    private void putLocal(String key, Object value, byte[] bytes){
+        String etag = CacheSerializer.etag(bytes);
+        boolean hot = hotKeyDetector != null && hotKeyDetector.isHot(key);
+        if(localCache == null && !hot){
+            return;
+        }
+        byte[] frame = etag != null ? bytes : serializer.serialize(value);
+        if(localCache != null){
+            localCache.put(key, frame, etag);
+        }
+        // 热点key再固定一份，即使本地缓存关闭或者被LRU淘汰也能在本地命中
+        if(hot){
+            hotCache.put(key, frame, etag);
+        }
+    }
+
+    /*
+    * 缓存数据的ETag（写入时算好的内容哈希），用于HTTP条件请求
+    * 先查本地缓存，没有时只读redis中数据的头部（GETRANGE），不解析数据
+    * 不存在或者是旧格式的数据时返回null
+    * */
+    public String etag(String key){
+        String etag = hotCache == null ? null : hotCache.etag(key);
+        if(etag == null && localCache != null){
+            etag = localCache.etag(key);
+        }
+        if(etag != null){
+            return etag;
+        }
+        byte[] header = cacheRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands()
+                .getRange(key.getBytes(StandardCharsets.UTF_8), 0, CacheSerializer.MAX_HEADER_LENGTH - 1));
+        return CacheSerializer.etag(header);
     }
 
     private boolean trylock(String key){
@@ -0,0 +1,20 @@
+package com.hmdp.utils;
+
+// 缓存值的编解码器，CacheClient通过它读写redis中的value
+public interface CacheCodec {
+
+    /*
+    * 编码器编号，会写入每条缓存的头部，读取时根据它选择对应的编码器
+    * 已经写入redis的编号不能修改
+    * */
+    byte id();
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, int offset, int length, Class<T> type);
+
+    /*
+    * 解码逻辑过期的RedisData，返回的RedisData中data已经是type类型
+    * */
+    <T> RedisData decodeRedisData(byte[] bytes, int offset, int length, Class<T> type);
+}
@@ -0,0 +1,156 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+* 所有缓存重建（逻辑过期重建、提前刷新）共用的线程池
+* 1.同一个key在排队或执行中时，再提交直接忽略
+* 2.队列有上限，满了之后淘汰优先级最低的任务（新任务优先级更低时丢弃新任务）
+* 3.按key的热度排优先级，热点key先重建
+* 4.任务里的异常会记录日志并计数，不会被吞掉
+* */
+@Slf4j
+@Component
+public class CacheRebuildScheduler {
+
+    private final int queueCapacity;
+    private final ThreadPoolExecutor executor;
+    private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>();
+    // 排队中或执行中的key
+    private final Map<String, Task> pending = new ConcurrentHashMap<>();
+    // 同优先级按提交顺序执行
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalMillis = new LongAdder();
+    private final LongAccumulator maxMillis = new LongAccumulator(Math::max, 0);
+
+    public CacheRebuildScheduler(CacheProperties cacheProperties) {
+        CacheProperties.Rebuild rebuild = cacheProperties.getRebuild();
+        this.queueCapacity = Math.max(1, rebuild.getQueueCapacity());
+        int threads = Math.max(1, rebuild.getThreads());
+        AtomicInteger threadIndex = new AtomicInteger();
+        // 队列无界（容量由submit控制），所以核心线程数就是最大线程数
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, queue, r -> {
+            Thread thread = new Thread(r, "cache-rebuild-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // 提交重建任务，priority越大越先执行，返回是否真正提交
+    public boolean submit(String key, long priority, Runnable runnable) {
+        Task task = new Task(key, priority, sequence.incrementAndGet(), runnable);
+        if (pending.putIfAbsent(key, task) != null) {
+            deduplicated.increment();
+            return false;
+        }
+        synchronized (this) {
+            if (queue.size() >= queueCapacity && !evictLowest(task)) {
+                pending.remove(key, task);
+                dropped.increment();
+                return false;
+            }
+            executor.execute(task);
+        }
+        submitted.increment();
+        return true;
+    }
+
+    // 队列满时淘汰优先级比新任务低的最低优先级任务，没有可淘汰的返回false
+    private boolean evictLowest(Task incoming) {
+        Task lowest = null;
+        for (Runnable r : queue) {
+            Task t = (Task) r;
+            if (lowest == null || t.compareTo(lowest) > 0) {
+                lowest = t;
+            }
+        }
+        if (lowest == null || lowest.priority >= incoming.priority || !queue.remove(lowest)) {
+            return false;
+        }
+        pending.remove(lowest.key, lowest);
+        dropped.increment();
+        log.debug("缓存重建队列已满，丢弃 key = {}", lowest.key);
+        return true;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long done = succeeded.sum() + failed.sum();
+        stats.put("queueDepth", queue.size());
+        stats.put("queueCapacity", queueCapacity);
+        stats.put("running", executor.getActiveCount());
+        stats.put("submitted", submitted.sum());
+        stats.put("deduplicated", deduplicated.sum());
+        stats.put("dropped", dropped.sum());
+        stats.put("succeeded", succeeded.sum());
+        stats.put("failed", failed.sum());
+        stats.put("avgMillis", done == 0 ? 0D : (double) totalMillis.sum() / done);
+        stats.put("maxMillis", maxMillis.get());
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private class Task implements Runnable, Comparable<Task> {
+        private final String key;
+        private final long priority;
+        private final long seq;
+        private final Runnable runnable;
+
+        private Task(String key, long priority, long seq, Runnable runnable) {
+            this.key = key;
+            this.priority = priority;
+            this.seq = seq;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            long begin = System.currentTimeMillis();
+            try {
+                runnable.run();
+                succeeded.increment();
+            } catch (Throwable e) {
+                failed.increment();
+                log.error("缓存重建失败, key = {}", key, e);
+            } finally {
+                long cost = System.currentTimeMillis() - begin;
+                totalMillis.add(cost);
+                maxMillis.accumulate(cost);
+                pending.remove(key, this);
+            }
+        }
+
+        // 优先级高的排在前面，同优先级先提交的排在前面
+        @Override
+        public int compareTo(Task o) {
+            if (priority != o.priority) {
+                return Long.compare(o.priority, priority);
+            }
+            return Long.compare(seq, o.seq);
+        }
+    }
+}
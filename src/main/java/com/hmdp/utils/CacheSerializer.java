@@ -0,0 +1,283 @@
+package com.hmdp.utils;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import net.jpountz.xxhash.XXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/*
+* 缓存值在redis中的存储格式：
+*   [0]      MAGIC，用来区分旧的json字符串（json只会以 { [ " 或数字等可见字符开头）
+*   [1]      标志位，低4位是编码器编号，其余位见FLAG_*
+*   [...]    FLAG_LOGICAL：8字节逻辑过期时间（毫秒时间戳），不用解析数据就能判断是否过期
+*   [...]    FLAG_REFRESH：8字节TTL到期时间（毫秒时间戳）+ 4字节重建耗时（毫秒），用于提前刷新
+*   [...]    FLAG_ETAG：8字节内容哈希（压缩前数据的xxHash64），用作HTTP的ETag
+*   [...]    FLAG_COMPRESSED：4字节压缩前的长度
+*   [...]    编码后的数据（逻辑过期的数据直接是对象本身，不再包一层RedisData）
+* 读取时兼容：
+*   1.没有头部的旧json数据（逻辑过期的是RedisData的json）
+*   2.MAGIC_V1格式：没有逻辑过期头，逻辑过期的数据是编码后的RedisData
+* */
+public class CacheSerializer {
+
+    // 旧格式的数据，需要解析RedisData才能拿到逻辑过期时间
+    public static final long NOT_LOGICAL = -1L;
+    // 新格式但没有逻辑过期时间（普通的TTL数据），视为永不逻辑过期
+    public static final long NEVER_EXPIRE = Long.MAX_VALUE;
+
+    private static final byte MAGIC_V1 = (byte) 0xCA;
+    private static final byte MAGIC = (byte) 0xCB;
+    private static final int CODEC_MASK = 0x0F;
+    private static final int FLAG_COMPRESSED = 0x10;
+    private static final int FLAG_LOGICAL = 0x20;
+    private static final int FLAG_REFRESH = 0x40;
+    private static final int FLAG_ETAG = 0x80;
+    // 头部最长的字节数，只读头部时用GETRANGE读这么多
+    public static final int MAX_HEADER_LENGTH = 2 + 8 + 12 + 8 + 4;
+
+    private static final LZ4Compressor COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4FastDecompressor DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+    private static final XXHash64 HASH = XXHashFactory.fastestInstance().hash64();
+
+    // 写入时使用的编码器
+    private final CacheCodec codec;
+    // 按编号查找编码器，读取时使用
+    private final CacheCodec[] codecs = new CacheCodec[CODEC_MASK + 1];
+    // 超过这个字节数才压缩，小于等于0表示不压缩
+    private final int compressThreshold;
+
+    public CacheSerializer(CacheCodec codec, int compressThreshold) {
+        this.codec = codec;
+        this.compressThreshold = compressThreshold;
+        register(new JsonCacheCodec());
+        register(new BinaryCacheCodec());
+        register(codec);
+    }
+
+    private void register(CacheCodec c) {
+        codecs[c.id() & CODEC_MASK] = c;
+    }
+
+    public byte[] serialize(Object value) {
+        return serialize(value, 0, false, 0, 0);
+    }
+
+    // 逻辑过期的数据，expireAt是毫秒时间戳
+    public byte[] serialize(Object value, long expireAt) {
+        return serialize(value, expireAt, true, 0, 0);
+    }
+
+    // 设置了TTL的数据，记录TTL到期时间和这次重建的耗时，读取时据此决定是否提前刷新
+    public byte[] serializeWithRefresh(Object value, long deadline, int rebuildMillis) {
+        return serialize(value, 0, false, deadline, rebuildMillis);
+    }
+
+    private byte[] serialize(Object value, long expireAt, boolean logical, long deadline, int rebuildMillis) {
+        byte[] payload = codec.encode(value);
+        // 写入时算一次内容哈希，请求时直接拿来当ETag
+        long hash = HASH.hash(payload, 0, payload.length, 0);
+        int flags = (codec.id() & CODEC_MASK) | FLAG_ETAG;
+        int length = payload.length;
+        if (compressThreshold > 0 && payload.length > compressThreshold) {
+            byte[] compressed = COMPRESSOR.compress(payload);
+            // 压缩后反而变大（比如图片地址已经很随机）就不压缩
+            if (compressed.length + 4 < payload.length) {
+                payload = compressed;
+                flags |= FLAG_COMPRESSED;
+            }
+        }
+        if (logical) {
+            flags |= FLAG_LOGICAL;
+        }
+        if (deadline > 0) {
+            flags |= FLAG_REFRESH;
+        }
+        byte[] bytes = new byte[headerLength(flags) + payload.length];
+        bytes[0] = MAGIC;
+        bytes[1] = (byte) flags;
+        int offset = 2;
+        if (logical) {
+            writeLong(bytes, offset, expireAt);
+            offset += 8;
+        }
+        if (deadline > 0) {
+            writeLong(bytes, offset, deadline);
+            writeInt(bytes, offset + 8, rebuildMillis);
+            offset += 12;
+        }
+        writeLong(bytes, offset, hash);
+        offset += 8;
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            writeInt(bytes, offset, length);
+            offset += 4;
+        }
+        System.arraycopy(payload, 0, bytes, offset, payload.length);
+        return bytes;
+    }
+
+    // 只读头部的逻辑过期时间，不解析数据也不创建对象
+    // 旧格式返回NOT_LOGICAL；新格式的普通数据返回NEVER_EXPIRE，由redis的TTL控制过期
+    public static long logicalExpireAt(byte[] bytes) {
+        if (bytes.length < 2 || bytes[0] != MAGIC) {
+            return NOT_LOGICAL;
+        }
+        if ((bytes[1] & FLAG_LOGICAL) == 0) {
+            return NEVER_EXPIRE;
+        }
+        return readLong(bytes, 2);
+    }
+
+    // TTL到期时间，没有记录时返回-1
+    public static long refreshDeadline(byte[] bytes) {
+        int offset = refreshOffset(bytes);
+        return offset < 0 ? -1 : readLong(bytes, offset);
+    }
+
+    // 写入时记录的重建耗时（毫秒），没有记录时返回0
+    public static int rebuildMillis(byte[] bytes) {
+        int offset = refreshOffset(bytes);
+        return offset < 0 ? 0 : readInt(bytes, offset + 8);
+    }
+
+    // 弱ETag，例如 W/"1a2b3c4d5e6f7a8b"，旧格式没有哈希时返回null
+    // 只需要头部，bytes可以是GETRANGE读出的前MAX_HEADER_LENGTH个字节
+    public static String etag(byte[] bytes) {
+        if (bytes == null || bytes.length < 2 || bytes[0] != MAGIC || (bytes[1] & FLAG_ETAG) == 0) {
+            return null;
+        }
+        int offset = 2;
+        if ((bytes[1] & FLAG_LOGICAL) != 0) {
+            offset += 8;
+        }
+        if ((bytes[1] & FLAG_REFRESH) != 0) {
+            offset += 12;
+        }
+        if (bytes.length < offset + 8) {
+            return null;
+        }
+        return "W/\"" + String.format("%016x", readLong(bytes, offset)) + "\"";
+    }
+
+    private static int refreshOffset(byte[] bytes) {
+        if (bytes.length < 2 || bytes[0] != MAGIC || (bytes[1] & FLAG_REFRESH) == 0) {
+            return -1;
+        }
+        return (bytes[1] & FLAG_LOGICAL) != 0 ? 10 : 2;
+    }
+
+    public <T> T deserialize(byte[] bytes, Class<T> type) {
+        if (isLegacyJson(bytes)) {
+            // 兼容旧数据：直接是json字符串
+            return codecs[JsonCacheCodec.ID].decode(bytes, 0, bytes.length, type);
+        }
+        CacheCodec c = codecOf(bytes);
+        int offset = headerLength(bytes);
+        if (isCompressed(bytes)) {
+            byte[] payload = decompress(bytes, offset);
+            return c.decode(payload, 0, payload.length, type);
+        }
+        return c.decode(bytes, offset, bytes.length - offset, type);
+    }
+
+    // 解码逻辑过期的数据，三种格式都支持
+    public <T> RedisData deserializeRedisData(byte[] bytes, Class<T> type) {
+        if (isLegacyJson(bytes)) {
+            return codecs[JsonCacheCodec.ID].decodeRedisData(bytes, 0, bytes.length, type);
+        }
+        long expireAt = logicalExpireAt(bytes);
+        if (expireAt != NOT_LOGICAL) {
+            RedisData redisData = new RedisData();
+            redisData.setExpireTime(expireAt == NEVER_EXPIRE
+                    ? LocalDateTime.MAX
+                    : LocalDateTime.ofInstant(Instant.ofEpochMilli(expireAt), ZoneId.systemDefault()));
+            redisData.setData(deserialize(bytes, type));
+            return redisData;
+        }
+        CacheCodec c = codecOf(bytes);
+        int offset = headerLength(bytes);
+        if (isCompressed(bytes)) {
+            byte[] payload = decompress(bytes, offset);
+            return c.decodeRedisData(payload, 0, payload.length, type);
+        }
+        return c.decodeRedisData(bytes, offset, bytes.length - offset, type);
+    }
+
+    // 空值（缓存穿透时写入的空字符串）
+    public static boolean isEmpty(byte[] bytes) {
+        return bytes != null && bytes.length == 0;
+    }
+
+    private static boolean isLegacyJson(byte[] bytes) {
+        return bytes.length < 2 || (bytes[0] != MAGIC && bytes[0] != MAGIC_V1);
+    }
+
+    private CacheCodec codecOf(byte[] bytes) {
+        CacheCodec c = codecs[bytes[1] & CODEC_MASK];
+        if (c == null) {
+            throw new IllegalStateException("未知的缓存编码: " + (bytes[1] & CODEC_MASK));
+        }
+        return c;
+    }
+
+    private static int headerLength(byte[] bytes) {
+        if (bytes[0] == MAGIC_V1) {
+            // V1只有压缩长度这一个可选字段
+            return (bytes[1] & FLAG_COMPRESSED) != 0 ? 6 : 2;
+        }
+        return headerLength(bytes[1]);
+    }
+
+    private static int headerLength(int flags) {
+        int length = 2;
+        if ((flags & FLAG_LOGICAL) != 0) {
+            length += 8;
+        }
+        if ((flags & FLAG_REFRESH) != 0) {
+            length += 12;
+        }
+        if ((flags & FLAG_ETAG) != 0) {
+            length += 8;
+        }
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            length += 4;
+        }
+        return length;
+    }
+
+    private static boolean isCompressed(byte[] bytes) {
+        return (bytes[1] & FLAG_COMPRESSED) != 0;
+    }
+
+    // 压缩前的长度在数据前面4个字节
+    private static byte[] decompress(byte[] bytes, int offset) {
+        return DECOMPRESSOR.decompress(bytes, offset, readInt(bytes, offset - 4));
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24)
+                | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8)
+                | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        writeInt(bytes, offset, (int) (value >>> 32));
+        writeInt(bytes, offset + 4, (int) value);
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        return ((long) readInt(bytes, offset) << 32) | (readInt(bytes, offset + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,149 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.constant.RedisConstant;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IShopTypeService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+* 启动时的缓存预热：逻辑过期的key没有预热时查询会直接返回null
+* 按id分块读取tb_shop，每块用一个pipeline写入逻辑过期的数据，多个块由有界线程池并发写入
+* 线程池队列满时由读取线程自己写（CallerRunsPolicy），不会一次性把全表读进内存
+* 任意一块写入失败或者超时都算预热失败
+* 预热期间Tomcat已经在处理请求，负载均衡通过 GET /cache/ready（不需要登录）判断节点是否就绪：
+*   预热完成（或者没有开启预热）返回200，预热中和预热失败返回503
+* */
+@Slf4j
+@Component
+public class CacheWarmUp implements ApplicationRunner {
+
+    private final ShopMapper shopMapper;
+    private final IShopTypeService shopTypeService;
+    private final CacheClient cacheClient;
+    private final CacheProperties.WarmUp properties;
+
+    // 预热状态：waiting、running、finished、failed、disabled
+    private volatile String state = "waiting";
+    private final AtomicLong warmed = new AtomicLong();
+    private volatile long begin;
+    private volatile long end;
+
+    public CacheWarmUp(ShopMapper shopMapper, IShopTypeService shopTypeService, CacheClient cacheClient,
+                       CacheProperties cacheProperties) {
+        this.shopMapper = shopMapper;
+        this.shopTypeService = shopTypeService;
+        this.cacheClient = cacheClient;
+        this.properties = cacheProperties.getWarmUp();
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!properties.isEnabled()) {
+            state = "disabled";
+            return;
+        }
+        state = "running";
+        begin = System.currentTimeMillis();
+        try {
+            shopTypeService.snapshot();
+            warmShops();
+            state = "finished";
+        } catch (Exception e) {
+            // 预热失败不影响启动，未预热的key由正常的查询逻辑处理
+            state = "failed";
+            log.error("缓存预热失败，已预热{}个商铺", warmed.get(), e);
+        } finally {
+            end = System.currentTimeMillis();
+        }
+    }
+
+    // 是否可以接收流量
+    public boolean isReady() {
+        return "finished".equals(state) || "disabled".equals(state);
+    }
+
+    private void warmShops() throws InterruptedException {
+        int threads = Math.max(1, properties.getThreads());
+        int chunkSize = Math.max(1, properties.getChunkSize());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads), new ThreadPoolExecutor.CallerRunsPolicy());
+        // 用submit拿到每一块的结果，execute在线程池里抛出的异常会丢失
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            long lastId = 0;
+            while (true) {
+                List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("limit " + chunkSize));
+                if (shops.isEmpty()) {
+                    break;
+                }
+                lastId = shops.get(shops.size() - 1).getId();
+                futures.add(executor.submit(() -> writeChunk(shops)));
+                if (shops.size() < chunkSize) {
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        if (!executor.awaitTermination(10, TimeUnit.MINUTES)) {
+            executor.shutdownNow();
+            throw new IllegalStateException("缓存预热超时，已预热" + warmed.get() + "个商铺");
+        }
+        int failures = 0;
+        Exception first = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                failures++;
+                if (first == null) {
+                    first = e;
+                }
+            }
+        }
+        if (failures > 0) {
+            throw new IllegalStateException("缓存预热有" + failures + "块写入失败", first);
+        }
+        long cost = Math.max(1, System.currentTimeMillis() - begin);
+        log.info("缓存预热完成，共{}个商铺，耗时{}ms，{}个/秒", warmed.get(), cost, warmed.get() * 1000 / cost);
+    }
+
+    private void writeChunk(List<Shop> shops) {
+        Map<String, Shop> values = new LinkedHashMap<>(shops.size() * 4 / 3 + 1);
+        for (Shop shop : shops) {
+            values.put(cacheClient.key(RedisConstant.CACHE_SHOP_KEY, shop.getId()), shop);
+        }
+        cacheClient.setWithLoginExpiredBatch(values, RedisConstant.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        long count = warmed.addAndGet(shops.size());
+        long cost = Math.max(1, System.currentTimeMillis() - begin);
+        log.debug("缓存预热中，已写入{}个商铺，{}个/秒", count, count * 1000 / cost);
+    }
+
+    public Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("state", state);
+        status.put("shops", warmed.get());
+        status.put("costMillis", begin == 0 ? 0 : (end == 0 ? System.currentTimeMillis() : end) - begin);
+        return status;
+    }
+}
@@ -0,0 +1,161 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+* 热点key探测：按采样率记录访问，用Count-Min Sketch估算每个key在当前时间窗口内的访问次数
+* 估算值（乘以采样倍数后）超过阈值的key视为热点，同时维护访问次数最多的前K个key
+* 每个时间窗口结束后整体清零，过去的热点不会一直占着位置
+* */
+public class HotKeyDetector {
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096;
+
+    // 每sampleEvery次访问记录一次，1表示全部记录
+    private final int sampleEvery;
+    private final long windowMillis;
+    // 窗口内访问次数达到这个值就是热点
+    private final long threshold;
+    private final int topK;
+
+    private volatile Window window;
+    // 按key前缀统计的访问次数（未采样），用于观察哪类数据最热
+    private final Map<String, LongAdder> prefixCounts = new ConcurrentHashMap<>();
+
+    public HotKeyDetector(int sampleEvery, long windowMillis, long threshold, int topK) {
+        this.sampleEvery = Math.max(1, sampleEvery);
+        this.windowMillis = windowMillis;
+        this.threshold = threshold;
+        this.topK = topK;
+        this.window = new Window(System.currentTimeMillis());
+    }
+
+    // 记录一次访问，返回这个key当前是否是热点
+    public boolean record(String key) {
+        prefixCounts.computeIfAbsent(prefixOf(key), p -> new LongAdder()).increment();
+        Window w = currentWindow();
+        if (sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) != 0) {
+            Long count = w.top.get(key);
+            return count != null && count >= threshold;
+        }
+        long estimate = w.add(key) * sampleEvery;
+        w.offerTop(key, estimate, topK);
+        return estimate >= threshold;
+    }
+
+    public boolean isHot(String key) {
+        Long count = currentWindow().top.get(key);
+        return count != null && count >= threshold;
+    }
+
+    // 当前窗口内的估算访问次数，不计入访问
+    public long estimate(String key) {
+        return currentWindow().count(key) * sampleEvery;
+    }
+
+    // 当前窗口访问次数最多的key，按次数倒序
+    public List<Map<String, Object>> topKeys() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(currentWindow().top.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        List<Map<String, Object>> result = new ArrayList<>(entries.size());
+        for (Map.Entry<String, Long> e : entries) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("key", e.getKey());
+            item.put("count", e.getValue());
+            item.put("hot", e.getValue() >= threshold);
+            result.add(item);
+        }
+        return result;
+    }
+
+    public Map<String, Long> prefixCounts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        prefixCounts.forEach((prefix, count) -> result.put(prefix, count.sum()));
+        return result;
+    }
+
+    private Window currentWindow() {
+        Window w = window;
+        long now = System.currentTimeMillis();
+        if (now - w.begin >= windowMillis) {
+            synchronized (this) {
+                w = window;
+                if (now - w.begin >= windowMillis) {
+                    w = new Window(now);
+                    window = w;
+                }
+            }
+        }
+        return w;
+    }
+
+    // cache:shop:1 的前缀是 cache:shop:
+    private static String prefixOf(String key) {
+        int index = key.lastIndexOf(':');
+        return index < 0 ? key : key.substring(0, index + 1);
+    }
+
+    private static class Window {
+        private final long begin;
+        private final AtomicLongArray counters = new AtomicLongArray(DEPTH * WIDTH);
+        private final Map<String, Long> top = new ConcurrentHashMap<>();
+
+        private Window(long begin) {
+            this.begin = begin;
+        }
+
+        // 每一行加1，返回各行中的最小值作为估算值
+        private long add(String key) {
+            int h1 = key.hashCode();
+            int h2 = hash2(h1);
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                int index = i * WIDTH + ((h1 + i * h2) & (WIDTH - 1));
+                min = Math.min(min, counters.incrementAndGet(index));
+            }
+            return min;
+        }
+
+        private long count(String key) {
+            int h1 = key.hashCode();
+            int h2 = hash2(h1);
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, counters.get(i * WIDTH + ((h1 + i * h2) & (WIDTH - 1))));
+            }
+            return min;
+        }
+
+        private static int hash2(int h1) {
+            return ((h1 >>> 16) | (h1 << 16)) * 0x9E3779B9 | 1;
+        }
+
+        private void offerTop(String key, long estimate, int topK) {
+            if (top.containsKey(key) || top.size() < topK) {
+                top.put(key, estimate);
+                return;
+            }
+            // 已满，替换掉次数最少的那个
+            String minKey = null;
+            long minCount = Long.MAX_VALUE;
+            for (Map.Entry<String, Long> e : top.entrySet()) {
+                if (e.getValue() < minCount) {
+                    minKey = e.getKey();
+                    minCount = e.getValue();
+                }
+            }
+            if (minKey != null && estimate > minCount) {
+                top.remove(minKey);
+                top.put(key, estimate);
+            }
+        }
+    }
+}
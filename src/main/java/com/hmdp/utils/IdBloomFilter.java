@@ -0,0 +1,294 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.constant.RedisConstant;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.VoucherMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RBloomFilter;
+import org.redisson.api.RedissonClient;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/*
+* 商铺和优惠券id的布隆过滤器，解决缓存穿透：不存在的id直接拒绝，不会访问redis和数据库
+* mode = local：每个节点一份进程内的位图，新增的id通过发布订阅同步给其他节点
+* mode = redis：使用Redisson的RBloomFilter（redis位图），所有节点共享
+*   每次重建写入新的过滤器（过滤器名:时间戳），全部加载完才把 过滤器名:current 指向它，查询只用建好的过滤器，
+*   还没有建好的过滤器时所有id放行；重建的节点挂掉后重建锁过期，其他节点定时检查时接管
+* mode = none：不过滤
+* */
+@Slf4j
+@Component
+public class IdBloomFilter {
+
+    private static final int LOAD_PAGE_SIZE = 10000;
+    // redis模式的重建锁时长，每加载一页续期一次
+    private static final long BUILD_LOCK_SECONDS = 120;
+    // redis模式下定时同步当前过滤器、检查是否需要接管重建的间隔
+    private static final long SYNC_SECONDS = 5;
+    // 替换下来的旧过滤器其他节点可能还在用，过这么久再删除
+    private static final long OLD_FILTER_TTL_SECONDS = 300;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedissonClient redissonClient;
+    private final CacheProperties.Bloom properties;
+
+    private final Map<String, LocalBloomFilter> localFilters = new ConcurrentHashMap<>();
+    // 正在加载中的过滤器，加载期间新增的id也要加进去，否则替换后会丢失
+    private final Map<String, LocalBloomFilter> loadingFilters = new ConcurrentHashMap<>();
+    // redis模式下每个过滤器当前可用的redis过滤器名字，没有时放行
+    private final Map<String, String> redisFilterNames = new ConcurrentHashMap<>();
+    // 过滤器名 -> 加载id的mapper
+    private final Map<String, BaseMapper<?>> mappers = new LinkedHashMap<>();
+    private ScheduledExecutorService redisExecutor;
+
+    public IdBloomFilter(ShopMapper shopMapper, VoucherMapper voucherMapper, StringRedisTemplate stringRedisTemplate,
+                         RedissonClient redissonClient, CacheProperties cacheProperties) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redissonClient = redissonClient;
+        this.properties = cacheProperties.getBloom();
+        mappers.put(RedisConstant.BLOOM_SHOP_KEY, shopMapper);
+        mappers.put(RedisConstant.BLOOM_VOUCHER_KEY, voucherMapper);
+    }
+
+    // 启动时从数据库加载所有id；local模式要等订阅了新增id的频道之后再加载，见initLocal
+    // redis模式在后台重建，重建期间使用已有的过滤器，之后定时同步
+    @PostConstruct
+    public void init() {
+        if (!"redis".equals(properties.getMode())) {
+            return;
+        }
+        redisExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bloom-filter-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        redisExecutor.execute(() -> {
+            syncRedis(false);
+            mappers.forEach(this::rebuildRedis);
+        });
+        redisExecutor.scheduleWithFixedDelay(() -> syncRedis(true), SYNC_SECONDS, SYNC_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (redisExecutor != null) {
+            redisExecutor.shutdownNow();
+        }
+    }
+
+    /*
+    * local模式在容器刷新完成后加载，此时RedisMessageListenerContainer已经启动并订阅了BLOOM_ADD_CHANNEL
+    * 先订阅再加载：加载期间其他节点新增的id通过消息加入loadingFilters，不会丢失
+    * 加载完成之前过滤器不存在，所有id放行
+    * */
+    @EventListener(ContextRefreshedEvent.class)
+    public void initLocal() {
+        if (!"local".equals(properties.getMode())) {
+            return;
+        }
+        mappers.forEach(this::rebuildLocal);
+    }
+
+    public boolean mightContain(String name, Long id) {
+        if (id == null) {
+            return false;
+        }
+        switch (properties.getMode()) {
+            case "local":
+                LocalBloomFilter filter = localFilters.get(name);
+                // 还没加载完时放行
+                return filter == null || filter.mightContain(id);
+            case "redis":
+                String current = redisFilterNames.get(name);
+                // 还没有建好的过滤器时放行
+                if (current == null) {
+                    return true;
+                }
+                try {
+                    return redisFilter(current).contains(id);
+                } catch (Exception e) {
+                    // 过滤器已经被删除（本节点长时间没有同步到新的名字）或者redis异常，放行
+                    log.warn("查询布隆过滤器{}失败", current, e);
+                    return true;
+                }
+            default:
+                return true;
+        }
+    }
+
+    // 新增数据后调用，local模式下通知其他节点一起添加
+    public void add(String name, Long id) {
+        switch (properties.getMode()) {
+            case "local":
+                addLocal(name, id);
+                stringRedisTemplate.convertAndSend(RedisConstant.BLOOM_ADD_CHANNEL, name + "|" + id);
+                break;
+            case "redis":
+                // 加到当前的过滤器和正在重建的过滤器，新增不频繁，每次都从redis读最新的名字
+                List<String> targets = stringRedisTemplate.opsForValue().multiGet(Arrays.asList(
+                        name + RedisConstant.BLOOM_CURRENT_SUFFIX, name + RedisConstant.BLOOM_BUILDING_SUFFIX));
+                if (targets != null) {
+                    for (String target : new LinkedHashSet<>(targets)) {
+                        if (target == null) {
+                            continue;
+                        }
+                        try {
+                            redisFilter(target).add(id);
+                        } catch (Exception e) {
+                            // 重建失败时正在重建的过滤器会被删除，加不进去没有影响
+                            log.warn("向布隆过滤器{}添加id失败, id = {}", target, id, e);
+                        }
+                    }
+                }
+                break;
+            default:
+        }
+    }
+
+    // 收到其他节点的新增消息，消息格式为 name|id
+    public void onAddMessage(String message) {
+        int index = message.lastIndexOf('|');
+        if (index < 0) {
+            return;
+        }
+        addLocal(message.substring(0, index), Long.valueOf(message.substring(index + 1)));
+    }
+
+    private void addLocal(String name, Long id) {
+        LocalBloomFilter filter = localFilters.get(name);
+        if (filter != null) {
+            filter.put(id);
+        }
+        LocalBloomFilter loading = loadingFilters.get(name);
+        if (loading != null) {
+            loading.put(id);
+        }
+    }
+
+    private void rebuildLocal(String name, BaseMapper<?> mapper) {
+        long begin = System.currentTimeMillis();
+        LocalBloomFilter filter = new LocalBloomFilter(properties.getExpectedInsertions(), properties.getFpp());
+        loadingFilters.put(name, filter);
+        long count = loadIds(mapper, filter::put);
+        // 整个替换，加载期间使用旧的过滤器
+        localFilters.put(name, filter);
+        loadingFilters.remove(name);
+        log.info("布隆过滤器{}加载完成，共{}个id，耗时{}ms", name, count, System.currentTimeMillis() - begin);
+    }
+
+    /*
+    * redis模式重建：拿到重建锁的节点把所有id加载到新的过滤器，完成后切换 过滤器名:current
+    * 重建期间新增的id同时加到新旧两个过滤器（见add），旧过滤器过一段时间后删除
+    * 拿不到锁说明其他节点正在重建，直接返回
+    * */
+    private void rebuildRedis(String name, BaseMapper<?> mapper) {
+        String buildingKey = name + RedisConstant.BLOOM_BUILDING_SUFFIX;
+        String building = name + ":" + System.currentTimeMillis();
+        if (!Boolean.TRUE.equals(stringRedisTemplate.opsForValue()
+                .setIfAbsent(buildingKey, building, BUILD_LOCK_SECONDS, TimeUnit.SECONDS))) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        RBloomFilter<Long> filter = redisFilter(building);
+        boolean switched = false;
+        try {
+            filter.tryInit(properties.getExpectedInsertions(), properties.getFpp());
+            long[] added = {0};
+            long count = loadIds(mapper, id -> {
+                filter.add(id);
+                if (++added[0] % LOAD_PAGE_SIZE == 0) {
+                    stringRedisTemplate.expire(buildingKey, BUILD_LOCK_SECONDS, TimeUnit.SECONDS);
+                }
+            });
+            String old = stringRedisTemplate.opsForValue().getAndSet(name + RedisConstant.BLOOM_CURRENT_SUFFIX, building);
+            redisFilterNames.put(name, building);
+            switched = true;
+            // 没有旧的说明是第一次使用这种方式，以前直接用过滤器名作为key的过滤器也一起删除
+            redisFilter(old == null ? name : old).expire(OLD_FILTER_TTL_SECONDS, TimeUnit.SECONDS);
+            log.info("布隆过滤器{}重建完成，共{}个id，耗时{}ms", building, count, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("布隆过滤器{}重建失败", name, e);
+        } finally {
+            if (!switched) {
+                filter.delete();
+            }
+            stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(buildingKey), building);
+        }
+    }
+
+    /*
+    * 同步每个过滤器当前可用的redis过滤器
+    * takeOver为true时，还没有建好的过滤器、也没有节点在重建（重建的节点挂掉了，锁已经过期）就由本节点重建
+    * */
+    private void syncRedis(boolean takeOver) {
+        mappers.forEach((name, mapper) -> {
+            try {
+                String current = stringRedisTemplate.opsForValue().get(name + RedisConstant.BLOOM_CURRENT_SUFFIX);
+                if (current != null) {
+                    redisFilterNames.put(name, current);
+                    return;
+                }
+                redisFilterNames.remove(name);
+                if (takeOver && !Boolean.TRUE.equals(stringRedisTemplate.hasKey(name + RedisConstant.BLOOM_BUILDING_SUFFIX))) {
+                    rebuildRedis(name, mapper);
+                }
+            } catch (Exception e) {
+                log.warn("同步布隆过滤器{}失败", name, e);
+            }
+        });
+    }
+
+    // 按id分页加载，避免一次性查出全表
+    private <E> long loadIds(BaseMapper<E> mapper, Consumer<Long> consumer) {
+        long lastId = 0;
+        long count = 0;
+        while (true) {
+            List<Object> ids = mapper.selectObjs(new QueryWrapper<E>()
+                    .select("id")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + LOAD_PAGE_SIZE));
+            for (Object id : ids) {
+                lastId = ((Number) id).longValue();
+                consumer.accept(lastId);
+            }
+            count += ids.size();
+            if (ids.size() < LOAD_PAGE_SIZE) {
+                return count;
+            }
+        }
+    }
+
+    private RBloomFilter<Long> redisFilter(String name) {
+        return redissonClient.getBloomFilter(name);
+    }
+}
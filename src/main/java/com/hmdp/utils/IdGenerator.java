@@ -0,0 +1,8 @@
+package com.hmdp.utils;
+
+// 全局唯一id生成器，hmdp.id.mode选择实现：redis（RedisIdWorker）或snowflake（SnowflakeIdWorker）
+public interface IdGenerator {
+
+    // key是业务前缀，例如order
+    long nextId(String key);
+}
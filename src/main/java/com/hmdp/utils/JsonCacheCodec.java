@@ -0,0 +1,42 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+
+// hutool的json编码，和原来直接存json字符串的格式一致
+public class JsonCacheCodec implements CacheCodec {
+
+    public static final byte ID = 0;
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, int length, Class<T> type) {
+        String json = new String(bytes, offset, length, StandardCharsets.UTF_8);
+        if (type.isArray()) {
+            // 列表按数组缓存，例如 Voucher[].class
+            return JSONUtil.parseArray(json).toBean(type);
+        }
+        return JSONUtil.toBean(json, type);
+    }
+
+    @Override
+    public <T> RedisData decodeRedisData(byte[] bytes, int offset, int length, Class<T> type) {
+        // 先转为RedisData，此时data是JSONObject，再转为指定类型
+        RedisData redisData = JSONUtil.toBean(new String(bytes, offset, length, StandardCharsets.UTF_8), RedisData.class);
+        if (redisData.getData() instanceof JSONObject) {
+            redisData.setData(JSONUtil.toBean((JSONObject) redisData.getData(), type));
+        }
+        return redisData;
+    }
+}
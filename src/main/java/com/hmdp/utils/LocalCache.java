@@ -0,0 +1,116 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// 进程内的有界缓存：按访问顺序LRU淘汰 + 写入后固定时间过期
+// 缓存的对象会直接返回给所有调用方，不能修改；CacheClient存的是编码后的字节，每次命中解码出新的对象
+public class LocalCache<V> {
+
+    private final int maximumSize;
+    private final long expireMillis;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // accessOrder = true，最近访问的在链表尾部，超出容量时淘汰头部（最久未访问）
+    private final LinkedHashMap<String, Entry<V>> map;
+
+    public LocalCache(int maximumSize, long expireMillis) {
+        this.maximumSize = maximumSize;
+        this.expireMillis = expireMillis;
+        this.map = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+                if (size() > LocalCache.this.maximumSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public V get(String key) {
+        Entry<V> entry;
+        synchronized (this) {
+            entry = map.get(key);
+            if (entry != null && entry.expireAt <= System.currentTimeMillis()) {
+                // 已过期，当作淘汰处理
+                map.remove(key);
+                evictions.increment();
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    public void put(String key, V value) {
+        put(key, value, null);
+    }
+
+    // etag是写入redis时算好的内容哈希，条件请求时不用访问redis
+    public void put(String key, V value, String etag) {
+        if (value == null) {
+            return;
+        }
+        Entry<V> entry = new Entry<>(value, etag, System.currentTimeMillis() + expireMillis);
+        synchronized (this) {
+            map.put(key, entry);
+        }
+    }
+
+    // 只读etag，不计入命中统计
+    public String etag(String key) {
+        Entry<V> entry;
+        synchronized (this) {
+            entry = map.get(key);
+        }
+        if (entry == null || entry.expireAt <= System.currentTimeMillis()) {
+            return null;
+        }
+        return entry.etag;
+    }
+
+    public synchronized void invalidate(String key) {
+        map.remove(key);
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    // 命中、未命中、淘汰次数，用来评估本地缓存的容量是否合适
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        long total = hitCount + missCount;
+        stats.put("size", size());
+        stats.put("maximumSize", maximumSize);
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("evictions", evictions.sum());
+        stats.put("hitRate", total == 0 ? 0D : (double) hitCount / total);
+        return stats;
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final String etag;
+        private final long expireAt;
+
+        private Entry(V value, String etag, long expireAt) {
+            this.value = value;
+            this.etag = etag;
+            this.expireAt = expireAt;
+        }
+    }
+}
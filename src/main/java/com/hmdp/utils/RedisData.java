@@ -5,6 +5,7 @@ import lombok.Data;
 import java.time.LocalDateTime;
 
 // todo 这里可以继承父类属性
+// 现在逻辑过期时间写在缓存头部（见CacheSerializer），这个类只用于读取旧格式的数据
 @Data
 public class RedisData {
     private LocalDateTime expireTime;
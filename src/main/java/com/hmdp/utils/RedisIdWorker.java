@@ -1,20 +1,66 @@
 package com.hmdp.utils;
 
+import com.hmdp.config.IdProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+/*
+* 全局唯一id：31位时间戳（秒，从2025.1.1开始）+ 32位当天的序列号，序列号存在redis的 icr:业务:yyyy:MM:dd 中
+* 号段模式（segmentSize > 0）：
+* 1.每次用INCRBY领取一段序列号（号段），在本地用原子游标发放，不用每个id都访问redis
+* 2.当前号段用掉10%时在后台线程预取下一段，用完时直接切换，一般不会等待redis
+* 3.日期变了旧号段作废（不同日期的序列号可能相同），节点重启时没用完的序列号作废，id不连续但不会重复
+* id的格式和原来完全一样
+* */
+@Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IdGenerator {
 
     private static final long BEGIN_TIMESTAMP = 1735689600L;  //2025.1.1
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
 
     private final StringRedisTemplate  stringRedisTemplate;
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    private final int segmentSize;
+    // 业务key -> 号段
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    // 预取号段的线程
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 当前日期，日期变化或者时区偏移变化（夏令时）时才重新计算，不用每次都格式化
+    private volatile Day day;
+
+    @Autowired
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate, IdProperties idProperties) {
+        this(stringRedisTemplate, idProperties.getSegmentSize());
+    }
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate, int segmentSize) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.segmentSize = Math.max(0, segmentSize);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        prefetchExecutor.shutdownNow();
     }
 
     // 设置全局唯一的自增id
@@ -24,30 +70,138 @@ public class RedisIdWorker {
     分布式唯一性：时间戳+业务前缀+日期维度共同保障
     空间效率：使用数值存储比字符串更节省内存
      */
+    @Override
     public long nextId(String key) {
-
-        // 获取当前时间
-        LocalDateTime now = LocalDateTime.now();
-        // 将其转换为UTC时区对应的UNIX时间戳（1970年以来的秒数）(UTC是零时区（基准时区）)
+        // 当前时间的秒数，和原来一样按本地时间换算成UTC的秒数（LocalDateTime.now().toEpochSecond(UTC)）
         // todo 要保证时区一致，所有否则获取的时间戳会因为时区不同而产生偏差
-            /*这段代码的功能是获取当前时间的Unix时间戳（秒级），使用UTC时区作为基准。具体解释如下：
-            now.toEpochSecond(ZoneOffset.UTC) 将LocalDateTime对象转换为自1970-01-01 00:00:00 UTC（零时区）起计算的秒数
-            使用ZoneOffset.UTC确保时区统一，避免因服务器时区差异导致时间戳偏差
-            计算结果nowSeconds是当前时间与UTC基准时刻的时间差值（单位：秒）
-            例如：若当前UTC时间为2025-01-01 00:00:00，则返回1735689600（即2025年元旦的Unix时间戳）*/
-        long nowSeconds = now.toEpochSecond(ZoneOffset.UTC);
-        long timestamp = nowSeconds - BEGIN_TIMESTAMP;
-
-        // 生成序列号，自增长存入Redis
-        // 用日期来设置key，超id序列号（32bit）
-        // 这里存储数值类型，占用空间少，提高数据库性能
-        String data = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        // 默认每次  自增1
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + key + ":" + data);   // 序列号
+        long epochSecond = System.currentTimeMillis() / 1000;
+        Day today = day(epochSecond);
+        long timestamp = epochSecond + today.offsetSeconds - BEGIN_TIMESTAMP;
+
+        // 生成序列号
+        long count = segmentSize > 0
+                ? nextCount(key, today)
+                // 用日期来设置key，超id序列号（32bit）, 默认每次  自增1
+                : stringRedisTemplate.opsForValue().increment("icr:" + key + ":" + today.text);
 
         return timestamp << 32 | count;  // 用 位移  和  或  来拼接
     }
 
+    // 从当前号段取一个序列号，号段用完时切换到下一段
+    private long nextCount(String key, Day today) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(key, k -> new SegmentBuffer());
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.day.equals(today.text)) {
+                long count = segment.cursor.getAndIncrement();
+                if (count <= segment.end) {
+                    if (count == segment.prefetchAt) {
+                        prefetch(key, buffer, today.text);
+                    }
+                    return count;
+                }
+            }
+            switchSegment(key, buffer, segment, today.text);
+        }
+    }
+
+    private void switchSegment(String key, SegmentBuffer buffer, Segment exhausted, String date) {
+        synchronized (buffer) {
+            // 其他线程已经切换过了
+            if (buffer.current != exhausted) {
+                return;
+            }
+            Segment segment = null;
+            CompletableFuture<Segment> next = buffer.next;
+            buffer.next = null;
+            if (next != null) {
+                try {
+                    // 预取还没完成时在这里等待
+                    segment = next.join();
+                } catch (Exception e) {
+                    log.warn("预取号段失败, key = {}", key, e);
+                }
+            }
+            // 预取的是前一天的号段，作废
+            if (segment == null || !segment.day.equals(date)) {
+                segment = loadSegment(key, date);
+            }
+            buffer.current = segment;
+        }
+    }
+
+    private void prefetch(String key, SegmentBuffer buffer, String date) {
+        synchronized (buffer) {
+            if (buffer.next == null) {
+                buffer.next = CompletableFuture.supplyAsync(() -> loadSegment(key, date), prefetchExecutor);
+            }
+        }
+    }
+
+    // INCRBY icr:业务:日期 segmentSize，返回值是号段的最后一个序列号
+    private Segment loadSegment(String key, String date) {
+        Long end = stringRedisTemplate.opsForValue().increment("icr:" + key + ":" + date, segmentSize);
+        if (end == null) {
+            throw new IllegalStateException("领取号段失败, key = " + key);
+        }
+        long start = end - segmentSize + 1;
+        return new Segment(date, start, end, start + segmentSize / 10);
+    }
+
+    private Day day(long epochSecond) {
+        Day current = day;
+        if (current != null && epochSecond >= current.from && epochSecond < current.until) {
+            return current;
+        }
+        current = new Day(epochSecond);
+        day = current;
+        return current;
+    }
+
+    // 一个本地日期（时区偏移不变的一段时间），在[from, until)内日期字符串和偏移都不变
+    private static final class Day {
+        private final String text;
+        private final long offsetSeconds;
+        private final long from;
+        private final long until;
+
+        Day(long epochSecond) {
+            ZoneRules rules = ZoneId.systemDefault().getRules();
+            Instant now = Instant.ofEpochSecond(epochSecond);
+            int offset = rules.getOffset(now).getTotalSeconds();
+            LocalDate date = LocalDate.ofEpochDay(Math.floorDiv(epochSecond + offset, 86400L));
+            long dayStart = date.toEpochDay() * 86400L - offset;
+            long dayEnd = dayStart + 86400L;
+            // 当天有夏令时切换时，到切换时间就重新计算
+            ZoneOffsetTransition previous = rules.previousTransition(now);
+            ZoneOffsetTransition next = rules.nextTransition(now);
+            this.text = date.format(DATE_FORMATTER);
+            this.offsetSeconds = offset;
+            this.from = previous == null ? dayStart : Math.max(dayStart, previous.getInstant().getEpochSecond());
+            this.until = next == null ? dayEnd : Math.min(dayEnd, next.getInstant().getEpochSecond());
+        }
+    }
+
+    private static final class Segment {
+        private final String day;
+        private final long end;
+        // 发放到这个序列号时预取下一段
+        private final long prefetchAt;
+        private final AtomicLong cursor;
+
+        Segment(String day, long start, long end, long prefetchAt) {
+            this.day = day;
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    private static final class SegmentBuffer {
+        private volatile Segment current;
+        private volatile CompletableFuture<Segment> next;
+    }
+
 //    public static void main(String [] args){
 //        // 创建表示2025年1月1日0点的LocalDateTime对象
 //        // 将其转换为UTC时区对应的UNIX时间戳（1970年以来的秒数）
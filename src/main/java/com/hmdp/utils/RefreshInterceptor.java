@@ -5,7 +5,7 @@ import cn.hutool.core.util.StrUtil;
 import com.hmdp.constant.RedisConstant;
 import com.hmdp.dto.UserDTO;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpServletRequest;
@@ -13,7 +13,8 @@ import javax.servlet.http.HttpServletResponse;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
-public class RefreshInterceptor implements HandlerInterceptor {
+// 异步请求（DeferredResult长轮询）开始后不会调用afterCompletion，要在afterConcurrentHandlingStarted中清理ThreadLocal
+public class RefreshInterceptor implements AsyncHandlerInterceptor {
     // @Resource  // 依赖注入
     private final StringRedisTemplate  stringRedisTemplate;
     // 构造函数
@@ -23,6 +24,8 @@ public class RefreshInterceptor implements HandlerInterceptor {
 
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 先清掉当前线程上可能残留的用户，没有token的请求不能继承上一个请求的登录状态
+        UserHolder.removeUser();
         // 从请求头中获取token
         String token = request.getHeader("authorization");
         // 如果为空，直接放行  todo: 那这里的设置不就没有意义了吗？这里的只起到了token刷新的功能
@@ -52,4 +55,10 @@ public class RefreshInterceptor implements HandlerInterceptor {
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
         UserHolder.removeUser();
     }
+
+    // 请求转为异步处理，原来的tomcat线程马上会去处理别的请求；异步结果返回时会重新走一遍preHandle
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserHolder.removeUser();
+    }
 }
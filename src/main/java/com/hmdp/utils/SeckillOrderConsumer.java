@@ -0,0 +1,706 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.constant.RedisConstant;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import io.lettuce.core.cluster.SlotHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/*
+* 秒杀订单的消费者：从各个订单stream读取订单并写入数据库
+* 1.每个秒杀券（分片）有自己的stream，登记在seckill:streams中，定时刷新；旧秒杀券使用按用户id分区的stream.orders:分区
+*   同一个用户同一个秒杀券的订单总在同一个stream
+* 2.每个stream同一时刻只属于一个节点（redis中的租约），节点内再按stream名字的哈希固定分给一个消费者线程，
+*   所以同一个用户同一个秒杀券的订单只有一个线程在写，不需要再给每条订单加分布式锁
+* 3.节点按存活节点数平分stream，新节点加入后旧节点释放多出的stream；节点挂掉后租约过期，其他节点接管
+* 4.接管stream后，原来消费者没确认的消息用XPENDING找出来，XCLAIM给stream现在的消费者线程处理
+* 5.每次读取一批消息（最多batchSize条或等待batchWaitMillis），一个事务批量写入后再一起确认
+* 6.不是集群、或者负责的stream都在同一个slot时，一条XREADGROUP读所有stream并阻塞等待；
+*   集群模式下按slot分组，每组一条XREADGROUP不阻塞地轮询，最近没有消息的组每次readBatch只读一次，空闲时访问redis的次数不随秒杀券数量成倍增加
+* 7.处理失败的消息留在pending list中，按XPENDING的投递次数指数退避重试，不阻塞后面的订单；
+*   投递maxDeliveries次仍然失败的转入死信stream（stream.orders.dlq）并确认，需要人工处理
+* 租约只保证正常情况下单线程写入，节点卡顿导致租约过期时可能短暂有两个写入者，由唯一索引(user_id, voucher_id)兜底
+* */
+@Slf4j
+@Component
+public class SeckillOrderConsumer {
+
+    // 获取或续期分区租约
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    // 释放租约，只删除自己持有的
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    // 轮询模式下这一轮没有读到消息时，等待多久再读
+    private static final long IDLE_POLL_MILLIS = 100;
+    // 轮询模式下，这么久之内读到过消息的slot每个轮询间隔都读，其余的每次readBatch只读一次
+    private static final long ACTIVE_MILLIS = 10000;
+    // 没有读到消息时最多等这么久返回，让线程重新获取自己负责的stream
+    private static final long MAX_POLL_MILLIS = 2000;
+    // 每次检查pending list最多取多少条
+    private static final long RETRY_SCAN_COUNT = 100;
+
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("partition_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final IVoucherOrderService voucherOrderService;
+    private final SeckillProperties properties;
+    private final SeckillOrderStatus orderStatus;
+
+    // 本节点的id，也是消费者名字的前缀
+    private final String instanceId;
+    // 需要读取的stream：登记的秒杀券stream，以及旧秒杀券的分区stream（如果还存在）
+    private final List<String> streams = new CopyOnWriteArrayList<>();
+    // 本节点持有租约的stream
+    private final Set<String> ownedStreams = ConcurrentHashMap.newKeySet();
+    // 每个stream最后一次读到消息的时间，轮询模式下据此跳过空闲的slot
+    private final Map<String, Long> lastMessageAt = new ConcurrentHashMap<>();
+    // 是否是集群模式，集群模式下不同slot的stream不能在一条命令中读取
+    private final boolean cluster;
+
+    // 消费者线程的名字，第i个线程负责 stream名字的哈希 % 线程数 == i 的stream
+    private String[] consumerNames;
+    // 认领到消息后通知对应的线程处理自己的pending list
+    private AtomicBoolean[] pendingFlags;
+
+    private ExecutorService consumerExecutor;
+    private ScheduledExecutorService scheduledExecutor;
+    private volatile boolean running;
+
+    // 重试和死信的统计
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder retrySucceeded = new LongAdder();
+    private final LongAdder deadLettered = new LongAdder();
+
+    public SeckillOrderConsumer(StringRedisTemplate stringRedisTemplate, IVoucherOrderService voucherOrderService,
+                                SeckillProperties properties, SeckillOrderStatus orderStatus) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.voucherOrderService = voucherOrderService;
+        this.properties = properties;
+        this.orderStatus = orderStatus;
+        RedisConnectionFactory connectionFactory = stringRedisTemplate.getRequiredConnectionFactory();
+        this.cluster = connectionFactory instanceof LettuceConnectionFactory
+                && ((LettuceConnectionFactory) connectionFactory).isClusterAware();
+        // ManagementFactory返回 进程号@主机名
+        String[] runtime = ManagementFactory.getRuntimeMXBean().getName().split("@");
+        this.instanceId = (runtime.length > 1 ? runtime[1] + "-" : "") + runtime[0];
+    }
+
+    @PostConstruct
+    public void start() {
+        renewLeases();
+        running = true;
+        int consumers = Math.max(1, properties.getConsumers());
+        consumerNames = new String[consumers];
+        pendingFlags = new AtomicBoolean[consumers];
+        consumerExecutor = Executors.newFixedThreadPool(consumers);
+        for (int i = 0; i < consumers; i++) {
+            consumerNames[i] = instanceId + "-" + i;
+            // 启动后先处理上次没确认的消息
+            pendingFlags[i] = new AtomicBoolean(true);
+            int index = i;
+            consumerExecutor.submit(() -> consume(index));
+        }
+        // 续期和认领分开两个线程，认领耗时长时不会耽误续期
+        scheduledExecutor = Executors.newScheduledThreadPool(2);
+        long renewMillis = Math.max(1, TimeUnit.SECONDS.toMillis(properties.getLeaseSeconds()) / 3);
+        scheduledExecutor.scheduleAtFixedRate(this::renewLeases, renewMillis, renewMillis, TimeUnit.MILLISECONDS);
+        scheduledExecutor.scheduleWithFixedDelay(this::reclaim, properties.getClaimIntervalSeconds(),
+                properties.getClaimIntervalSeconds(), TimeUnit.SECONDS);
+        log.info("秒杀订单消费者已启动，{}个stream，{}个消费者，节点{}持有{}", streams.size(), consumers,
+                instanceId, ownedStreams);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (scheduledExecutor != null) {
+            scheduledExecutor.shutdownNow();
+        }
+        if (consumerExecutor != null) {
+            consumerExecutor.shutdownNow();
+        }
+        // 主动释放租约，其他节点不用等租约过期就能接管
+        for (String stream : ownedStreams) {
+            releaseLease(stream);
+        }
+        ownedStreams.clear();
+        stringRedisTemplate.opsForZSet().remove(RedisConstant.SECKILL_NODES_KEY, instanceId);
+    }
+
+    // 重试和死信的统计，以及本节点持有的stream中待确认的消息数、死信stream的长度
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long pending = 0;
+        for (String stream : ownedStreams) {
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream()
+                    .pending(stream, RedisConstant.SECKILL_ORDER_GROUP);
+            if (summary != null) {
+                pending += summary.getTotalPendingMessages();
+            }
+        }
+        Long deadLetterSize = stringRedisTemplate.opsForStream().size(RedisConstant.SECKILL_ORDER_DLQ);
+        stats.put("streams", streams.size());
+        stats.put("ownedStreams", ownedStreams.size());
+        stats.put("pending", pending);
+        stats.put("failed", failed.sum());
+        stats.put("retried", retried.sum());
+        stats.put("retrySucceeded", retrySucceeded.sum());
+        stats.put("deadLettered", deadLettered.sum());
+        stats.put("deadLetterSize", deadLetterSize == null ? 0 : deadLetterSize);
+        return stats;
+    }
+
+    public static String partitionKey(int partition) {
+        return RedisConstant.SECKILL_ORDER_STREAM + ":" + partition;
+    }
+
+    // 消费者组不存在时创建，stream不存在时一起创建（MKSTREAM）
+    private void createGroup(String stream) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    stream.getBytes(StandardCharsets.UTF_8), RedisConstant.SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // BUSYGROUP：消费者组已经存在
+            log.debug("消费者组已存在, stream = {}", stream);
+        }
+    }
+
+    /*
+    * 刷新需要读取的stream
+    * 1.seckill:streams中秒杀结束不超过streamRetentionHours的stream
+    * 2.旧秒杀券的分区stream和分区之前的stream，存在才读
+    * 新发现的stream先创建消费者组；不再需要读的stream释放租约
+    * */
+    private void refreshStreams() {
+        long from = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(properties.getStreamRetentionHours());
+        Set<String> latest = new LinkedHashSet<>();
+        Set<String> registered = stringRedisTemplate.opsForZSet()
+                .rangeByScore(RedisConstant.SECKILL_STREAMS_KEY, from, Double.POSITIVE_INFINITY);
+        if (registered != null) {
+            latest.addAll(registered);
+        }
+        for (int i = 0; i < properties.getPartitions(); i++) {
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(partitionKey(i)))) {
+                latest.add(partitionKey(i));
+            }
+        }
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstant.SECKILL_ORDER_STREAM))) {
+            latest.add(RedisConstant.SECKILL_ORDER_STREAM);
+        }
+        for (String stream : latest) {
+            if (!streams.contains(stream)) {
+                createGroup(stream);
+                streams.add(stream);
+            }
+        }
+        for (String stream : streams) {
+            if (!latest.contains(stream)) {
+                streams.remove(stream);
+                lastMessageAt.remove(stream);
+                if (ownedStreams.remove(stream)) {
+                    releaseLease(stream);
+                }
+            }
+        }
+    }
+
+    /*
+    * 刷新stream，心跳并调整持有的stream
+    * 1.在zset中记录本节点的心跳，删除超过一个租约时长没有心跳的节点
+    * 2.每个节点最多持有 ceil(stream数 / 存活节点数) 个stream，多出来的释放掉
+    * 3.续期已持有的，份额没满时占用没有主人的stream
+    * */
+    private void renewLeases() {
+        try {
+            refreshStreams();
+            long now = System.currentTimeMillis();
+            long leaseMillis = TimeUnit.SECONDS.toMillis(properties.getLeaseSeconds());
+            stringRedisTemplate.opsForZSet().add(RedisConstant.SECKILL_NODES_KEY, instanceId, now);
+            stringRedisTemplate.opsForZSet().removeRangeByScore(RedisConstant.SECKILL_NODES_KEY, 0, now - leaseMillis);
+            Long count = stringRedisTemplate.opsForZSet().zCard(RedisConstant.SECKILL_NODES_KEY);
+            long nodes = Math.max(1, count == null ? 1 : count);
+            long share = (streams.size() + nodes - 1) / nodes;
+            for (String stream : streams) {
+                if (!ownedStreams.contains(stream)) {
+                    continue;
+                }
+                if (ownedStreams.size() > share) {
+                    releaseLease(stream);
+                    ownedStreams.remove(stream);
+                    log.info("节点{}释放分区{}", instanceId, stream);
+                } else if (!tryLease(stream, leaseMillis)) {
+                    ownedStreams.remove(stream);
+                    log.warn("节点{}的分区{}租约已被其他节点持有", instanceId, stream);
+                }
+            }
+            for (String stream : streams) {
+                if (ownedStreams.size() >= share) {
+                    break;
+                }
+                if (!ownedStreams.contains(stream) && tryLease(stream, leaseMillis)) {
+                    ownedStreams.add(stream);
+                    log.info("节点{}接管分区{}", instanceId, stream);
+                }
+            }
+        } catch (Exception e) {
+            log.error("续期分区租约失败", e);
+        }
+    }
+
+    // 本节点当前持有租约的stream
+    public Set<String> ownedStreams() {
+        return new LinkedHashSet<>(ownedStreams);
+    }
+
+    boolean tryLease(String stream, long leaseMillis) {
+        Long result = stringRedisTemplate.execute(LEASE_SCRIPT,
+                Collections.singletonList(RedisConstant.SECKILL_LEASE_KEY + stream),
+                instanceId, String.valueOf(leaseMillis));
+        return result != null && result == 1L;
+    }
+
+    void releaseLease(String stream) {
+        try {
+            stringRedisTemplate.execute(RELEASE_SCRIPT,
+                    Collections.singletonList(RedisConstant.SECKILL_LEASE_KEY + stream), instanceId);
+        } catch (Exception e) {
+            log.warn("释放分区租约失败, stream = {}", stream, e);
+        }
+    }
+
+    // 第index个消费者线程负责的stream：本节点持有的、名字的哈希 % 线程数 == index 的stream
+    // 按名字而不是下标分配，stream列表变化时其他stream不会换线程
+    private List<String> assignedStreams(int index) {
+        List<String> assigned = new ArrayList<>();
+        for (String stream : streams) {
+            if (ownerIndex(stream) == index && ownedStreams.contains(stream)) {
+                assigned.add(stream);
+            }
+        }
+        return assigned;
+    }
+
+    private int ownerIndex(String stream) {
+        return Math.floorMod(stream.hashCode(), consumerNames.length);
+    }
+
+    // 线程任务：不断从自己负责的分区中取出订单信息，进行下单
+    private void consume(int index) {
+        Consumer consumer = Consumer.from(RedisConstant.SECKILL_ORDER_GROUP, consumerNames[index]);
+        // 下一次检查pending list的时间
+        long nextRetry = 0;
+        while (running) {
+            List<String> assigned = assignedStreams(index);
+            try {
+                if (assigned.isEmpty()) {
+                    // 还没有分到分区，等下次续期
+                    Thread.sleep(1000);
+                    continue;
+                }
+                if (pendingFlags[index].getAndSet(false) || System.currentTimeMillis() >= nextRetry) {
+                    nextRetry = retryPending(consumer, assigned);
+                }
+                List<MapRecord<String, Object, Object>> messageList = readBatch(consumer, assigned);
+                // 如果消息没有获取成功，进入下一次循环
+                if (messageList.isEmpty()) {
+                    continue;
+                }
+                if (processBatch(messageList) > 0) {
+                    // 失败的消息留在pending list中，退避后重试
+                    nextRetry = Math.min(nextRetry, System.currentTimeMillis() + retryBackoff(1));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                if (!running) {
+                    break;
+                }
+                log.error("消息队列异常", e);
+                nextRetry = 0;
+                // 稍休眠，防止redis不可用时循环太频繁
+                try {
+                    Thread.sleep(IDLE_POLL_MILLIS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    /*
+    * 读取一批消息：读到N条或者读到第一条后等待T毫秒后返回
+    * 1.负责的stream在同一个slot（不是集群时总是这样）：
+    *   XREADGROUP GROUP g1 name COUNT n BLOCK t STREAMS stream1 stream2 ... > > ...，没有消息时在redis中阻塞，不轮询
+    * 2.集群模式下分布在多个slot：每个slot一条不阻塞的XREADGROUP，这一轮都没有新消息时稍等再读；
+    *   最近ACTIVE_MILLIS内没有消息的slot只在第一轮读，空闲时每MAX_POLL_MILLIS才读一次
+    * */
+    private List<MapRecord<String, Object, Object>> readBatch(Consumer consumer, List<String> assigned)
+            throws InterruptedException {
+        int batchSize = Math.max(1, properties.getBatchSize());
+        List<MapRecord<String, Object, Object>> batch = new ArrayList<>(batchSize);
+        Collection<List<String>> groups = slotGroups(assigned);
+        boolean blocking = groups.size() == 1;
+        long giveUp = System.currentTimeMillis() + MAX_POLL_MILLIS;
+        long deadline = Long.MAX_VALUE;
+        boolean firstRound = true;
+        while (running && batch.size() < batchSize) {
+            int before = batch.size();
+            long now = System.currentTimeMillis();
+            if (blocking) {
+                // 还没读到消息时最多等到giveUp，读到之后最多等到凑批的deadline
+                long wait = (batch.isEmpty() ? giveUp : deadline) - now;
+                if (wait <= 0) {
+                    break;
+                }
+                batch.addAll(read(consumer, groups.iterator().next(), batchSize - batch.size(), wait));
+            } else {
+                for (List<String> group : groups) {
+                    if (batch.size() >= batchSize) {
+                        break;
+                    }
+                    if (firstRound || isActive(group, now)) {
+                        batch.addAll(read(consumer, group, batchSize - batch.size(), 0));
+                    }
+                }
+            }
+            firstRound = false;
+            now = System.currentTimeMillis();
+            if (before == 0 && !batch.isEmpty()) {
+                deadline = now + properties.getBatchWaitMillis();
+            }
+            if (batch.size() >= batchSize || now >= deadline || (batch.isEmpty() && now >= giveUp)) {
+                break;
+            }
+            if (!blocking && batch.size() == before) {
+                // 这一轮没有新消息：凑批时等剩下的时间，空闲时等一个轮询间隔
+                Thread.sleep(batch.isEmpty() ? IDLE_POLL_MILLIS : Math.max(1, Math.min(IDLE_POLL_MILLIS, deadline - now)));
+            }
+        }
+        return batch;
+    }
+
+    // 一条XREADGROUP读取同一个slot的多个stream，blockMillis大于0时阻塞等待
+    @SuppressWarnings("unchecked")
+    private List<MapRecord<String, Object, Object>> read(Consumer consumer, List<String> group, int count,
+                                                         long blockMillis) {
+        StreamReadOptions options = StreamReadOptions.empty().count(count);
+        if (blockMillis > 0) {
+            options = options.block(Duration.ofMillis(blockMillis));
+        }
+        StreamOffset<String>[] offsets = new StreamOffset[group.size()];
+        for (int i = 0; i < group.size(); i++) {
+            offsets[i] = StreamOffset.create(group.get(i), ReadOffset.lastConsumed());
+        }
+        List<MapRecord<String, Object, Object>> messageList = stringRedisTemplate.opsForStream()
+                .read(consumer, options, offsets);
+        if (messageList == null || messageList.isEmpty()) {
+            return Collections.emptyList();
+        }
+        long now = System.currentTimeMillis();
+        for (MapRecord<String, Object, Object> record : messageList) {
+            lastMessageAt.put(record.getStream(), now);
+        }
+        return messageList;
+    }
+
+    // 按slot给stream分组，不是集群时所有stream一组
+    private Collection<List<String>> slotGroups(List<String> assigned) {
+        if (!cluster) {
+            return Collections.singletonList(assigned);
+        }
+        Map<Integer, List<String>> groups = new LinkedHashMap<>();
+        for (String stream : assigned) {
+            groups.computeIfAbsent(SlotHash.getSlot(stream), slot -> new ArrayList<>()).add(stream);
+        }
+        return groups.values();
+    }
+
+    private boolean isActive(List<String> group, long now) {
+        for (String stream : group) {
+            Long at = lastMessageAt.get(stream);
+            if (at != null && now - at < ACTIVE_MILLIS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+    * 检查自己的pending list，返回下一次需要检查的时间
+    * 1.XPENDING stream g1 - + n name 拿到每条消息的投递次数和距上次投递的时间
+    * 2.投递次数达到maxDeliveries的转入死信stream
+    * 3.距上次投递超过退避时间（retryBackoffMillis * 2^(投递次数-1)）的用XCLAIM重新投递给自己（投递次数+1），逐条处理
+    * 还没到时间的不处理，不会因为一条处理不了的消息卡住后面的订单
+    * */
+    private long retryPending(Consumer consumer, List<String> assigned) {
+        long nextRetry = Long.MAX_VALUE;
+        for (String stream : assigned) {
+            if (!running) {
+                break;
+            }
+            try {
+                PendingMessages pending = stringRedisTemplate.opsForStream()
+                        .pending(stream, consumer, Range.unbounded(), RETRY_SCAN_COUNT);
+                long now = System.currentTimeMillis();
+                Map<RecordId, Long> due = new LinkedHashMap<>();
+                for (PendingMessage message : pending) {
+                    long deliveries = message.getTotalDeliveryCount();
+                    if (deliveries >= properties.getMaxDeliveries()) {
+                        deadLetter(stream, message.getId(), deliveries);
+                        continue;
+                    }
+                    long wait = retryBackoff(deliveries) - message.getElapsedTimeSinceLastDelivery().toMillis();
+                    if (wait <= 0) {
+                        due.put(message.getId(), deliveries);
+                    } else {
+                        nextRetry = Math.min(nextRetry, now + wait);
+                    }
+                }
+                if (pending.size() >= RETRY_SCAN_COUNT) {
+                    // 这一页之后可能还有，下一轮接着检查
+                    nextRetry = Math.min(nextRetry, now + IDLE_POLL_MILLIS);
+                }
+                if (!due.isEmpty()) {
+                    nextRetry = Math.min(nextRetry, retry(stream, consumer, due));
+                }
+            } catch (Exception e) {
+                log.error("检查pendingList异常, stream = {}", stream, e);
+                nextRetry = Math.min(nextRetry, System.currentTimeMillis() + retryBackoff(1));
+            }
+        }
+        return nextRetry;
+    }
+
+    // 重新投递到期的消息并逐条处理，返回失败的消息下一次可以重试的时间
+    private long retry(String stream, Consumer consumer, Map<RecordId, Long> due) {
+        List<ByteRecord> records = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(stream.getBytes(StandardCharsets.UTF_8),
+                        RedisConstant.SECKILL_ORDER_GROUP, consumer.getName(),
+                        RedisStreamCommands.XClaimOptions.minIdleMs(retryBackoff(1)).ids(new ArrayList<>(due.keySet()))));
+        long nextRetry = Long.MAX_VALUE;
+        if (records == null) {
+            return nextRetry;
+        }
+        for (ByteRecord byteRecord : records) {
+            MapRecord<String, String, String> record = byteRecord.deserialize(StringRedisSerializer.UTF_8);
+            retried.increment();
+            if (handleRecord(record.getStream(), record.getId(), record.getValue())) {
+                retrySucceeded.increment();
+            } else {
+                Long deliveries = due.get(record.getId());
+                nextRetry = Math.min(nextRetry, System.currentTimeMillis()
+                        + retryBackoff(deliveries == null ? 1 : deliveries + 1));
+            }
+        }
+        return nextRetry;
+    }
+
+    // 第n次投递失败后，等待 retryBackoffMillis * 2^(n-1) 再重试，最多maxRetryBackoffMillis
+    private long retryBackoff(long deliveries) {
+        long base = Math.max(1, properties.getRetryBackoffMillis());
+        long shift = Math.min(Math.max(0, deliveries - 1), 20);
+        return Math.min(base << shift, Math.max(base, properties.getMaxRetryBackoffMillis()));
+    }
+
+    /*
+    * 转入死信stream：原消息的字段加上来源stream、消息id和投递次数，写入后再确认原消息
+    * 这些订单redis中已经扣了库存、记录了用户，数据库里却没有，需要人工处理
+    * 写入死信后还没确认时节点挂了，消息会在死信stream中出现两次，处理时按来源消息id去重
+    * */
+    private void deadLetter(String stream, RecordId id, long deliveries) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(stream, Range.closed(id.getValue(), id.getValue()));
+        if (records != null && !records.isEmpty()) {
+            Map<Object, Object> value = new LinkedHashMap<>(records.get(0).getValue());
+            value.put("sourceStream", stream);
+            value.put("sourceId", id.getValue());
+            value.put("deliveries", String.valueOf(deliveries));
+            stringRedisTemplate.opsForStream().add(RedisConstant.SECKILL_ORDER_DLQ, value);
+            orderStatus.update(Collections.singletonList(
+                    BeanUtil.fillBeanWithMap(records.get(0).getValue(), new VoucherOrder(), true)), SeckillOrderStatus.FAILED);
+        }
+        stringRedisTemplate.opsForStream().acknowledge(stream, RedisConstant.SECKILL_ORDER_GROUP, id);
+        deadLettered.increment();
+        log.error("订单消息投递{}次仍然失败，已转入死信stream, stream = {}, id = {}", deliveries, stream, id);
+    }
+
+    /*
+    * 认领长时间未确认的消息：stream原来的节点挂了、重启了（重启后进程号变了，名字也变了）或者把stream让了出来
+    * 只认领本节点持有的stream，XCLAIM给负责这个stream的线程，由它处理，保证一个stream只有一个线程在写
+    * XCLAIM带上最小空闲时间，租约交接的间隙两个节点同时认领同一条消息时只有一个会成功
+    * */
+    private void reclaim() {
+        long minIdleMillis = TimeUnit.SECONDS.toMillis(properties.getClaimIdleSeconds());
+        for (String stream : streams) {
+            if (!ownedStreams.contains(stream)) {
+                continue;
+            }
+            int index = ownerIndex(stream);
+            String owner = consumerNames[index];
+            try {
+                PendingMessages pending = stringRedisTemplate.opsForStream()
+                        .pending(stream, RedisConstant.SECKILL_ORDER_GROUP, Range.unbounded(), 100);
+                List<RecordId> ids = new ArrayList<>();
+                for (PendingMessage message : pending) {
+                    if (!owner.equals(message.getConsumerName())
+                            && message.getElapsedTimeSinceLastDelivery().toMillis() >= minIdleMillis) {
+                        ids.add(message.getId());
+                    }
+                }
+                if (!ids.isEmpty()) {
+                    List<ByteRecord> records = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                            connection.streamCommands().xClaim(stream.getBytes(StandardCharsets.UTF_8),
+                                    RedisConstant.SECKILL_ORDER_GROUP, owner,
+                                    RedisStreamCommands.XClaimOptions.minIdleMs(minIdleMillis).ids(ids)));
+                    if (records != null && !records.isEmpty()) {
+                        pendingFlags[index].set(true);
+                    }
+                    log.info("认领了{}条超时未确认的订单消息, stream = {}, 交给{}", records == null ? 0 : records.size(),
+                            stream, owner);
+                }
+                removeIdleConsumers(stream, minIdleMillis);
+            } catch (Exception e) {
+                log.error("认领pending消息失败, stream = {}", stream, e);
+            }
+        }
+    }
+
+    // 删除已经没有pending消息、长时间不活跃的消费者（已经下线的节点）
+    private void removeIdleConsumers(String stream, long minIdleMillis) {
+        StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream()
+                .consumers(stream, RedisConstant.SECKILL_ORDER_GROUP);
+        consumers.forEach(info -> {
+            if (!info.consumerName().startsWith(instanceId + "-")
+                    && info.pendingCount() == 0 && info.idleTimeMs() >= minIdleMillis) {
+                stringRedisTemplate.opsForStream().deleteConsumer(stream,
+                        Consumer.from(RedisConstant.SECKILL_ORDER_GROUP, info.consumerName()));
+            }
+        });
+    }
+
+    /*
+    * 批量模式：整批订单在一个事务里写入，提交成功后再按stream分组XACK
+    * 事务失败（比如某个优惠券数据库库存和redis不一致）时逐条处理，失败的那条留在pending list中
+    * 被唯一索引跳过、数据库里也没有的订单（同一用户已经用别的订单下过单）状态是FAILED，和逐条处理一样
+    * 返回失败的消息数
+    * */
+    private int processBatch(List<? extends MapRecord<String, ?, ?>> records) {
+        if (records.size() == 1 || properties.getBatchSize() <= 1) {
+            return handleRecords(records);
+        }
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        for (MapRecord<String, ?, ?> record : records) {
+            orders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+        }
+        Set<Long> created;
+        try {
+            created = voucherOrderService.createVoucherOrders(orders);
+        } catch (Exception e) {
+            log.warn("批量写入{}条订单失败，改为逐条处理", orders.size(), e);
+            return handleRecords(records);
+        }
+        // 提交成功后再确认，XACK stream.orders:分区 g1 id1 id2 ...
+        Map<String, List<RecordId>> ids = new HashMap<>();
+        for (MapRecord<String, ?, ?> record : records) {
+            ids.computeIfAbsent(record.getStream(), k -> new ArrayList<>()).add(record.getId());
+        }
+        ids.forEach((stream, recordIds) -> stringRedisTemplate.opsForStream()
+                .acknowledge(stream, RedisConstant.SECKILL_ORDER_GROUP, recordIds.toArray(new RecordId[0])));
+        Map<Boolean, List<VoucherOrder>> results = orders.stream()
+                .collect(Collectors.partitioningBy(order -> created.contains(order.getId())));
+        orderStatus.update(results.get(true), SeckillOrderStatus.CREATED);
+        orderStatus.update(results.get(false), SeckillOrderStatus.FAILED);
+        return 0;
+    }
+
+    private int handleRecords(List<? extends MapRecord<String, ?, ?>> records) {
+        int failures = 0;
+        for (MapRecord<String, ?, ?> record : records) {
+            if (!handleRecord(record.getStream(), record.getId(), record.getValue())) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    /*
+    * 创建订单：同一用户的订单只会在一个线程里处理，重复的订单由唯一索引过滤，不需要加锁
+    * 失败时不确认，消息留在pending list中等待重试，返回是否成功
+    * 处理完更新订单状态：没有写入时（重复投递或者库存不足）按数据库里有没有这个订单决定是CREATED还是FAILED
+    * */
+    private boolean handleRecord(String stream, RecordId id, Map<?, ?> value) {
+        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+        String status;
+        try {
+            // 通过spring注入的代理对象调用，事务才会生效
+            Result result = voucherOrderService.createVoucherOrder(voucherOrder);
+            status = Boolean.TRUE.equals(result.getSuccess()) || voucherOrderService.getById(voucherOrder.getId()) != null
+                    ? SeckillOrderStatus.CREATED : SeckillOrderStatus.FAILED;
+        } catch (Exception e) {
+            failed.increment();
+            log.error("处理订单消息失败, stream = {}, id = {}", stream, id, e);
+            return false;
+        }
+        // ACK确认 XACK stream.orders:分区 g1 id
+        stringRedisTemplate.opsForStream().acknowledge(stream, RedisConstant.SECKILL_ORDER_GROUP, id);
+        orderStatus.update(Collections.singletonList(voucherOrder), status);
+        return true;
+    }
+}
@@ -0,0 +1,128 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.constant.RedisConstant;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+* 秒杀订单的处理状态，客户端下单后不用轮询数据库就能知道异步写入是否成功
+* 1.order.lua下单成功时写入 seckill:order:status:{tag}:订单id = PENDING，和库存key在同一个slot，带过期时间
+* 2.消费者写入数据库后改为CREATED，库存不足或者多次重试失败转入死信后改为FAILED；只更新还存在的记录
+* 3.长轮询：请求先登记在本地，再读一次状态，还是PENDING就等待；
+*   状态变化后消费者通过发布订阅通知所有节点（每批订单一条消息），等待的请求直接用消息里的状态返回
+* */
+@Slf4j
+@Component
+public class SeckillOrderStatus {
+
+    public static final String PENDING = "PENDING";
+    public static final String CREATED = "CREATED";
+    public static final String FAILED = "FAILED";
+    // 记录不存在：不是这个用户的订单，或者已经过期
+    public static final String UNKNOWN = "UNKNOWN";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillStockShards stockShards;
+    private final SeckillProperties properties;
+
+    // 等待状态变化的长轮询请求，key是状态记录的key
+    private final Map<String, Set<DeferredResult<Result>>> waiters = new ConcurrentHashMap<>();
+
+    public SeckillOrderStatus(StringRedisTemplate stringRedisTemplate, SeckillStockShards stockShards,
+                              SeckillProperties properties) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.stockShards = stockShards;
+        this.properties = properties;
+    }
+
+    public String get(Long voucherId, Long userId, Long orderId) {
+        String status = stringRedisTemplate.opsForValue().get(stockShards.statusKey(voucherId, userId, orderId));
+        return status == null ? UNKNOWN : status;
+    }
+
+    // 等待订单离开PENDING状态，最多等timeoutSeconds秒，超时返回当时的状态
+    public DeferredResult<Result> await(Long voucherId, Long userId, Long orderId, long timeoutSeconds) {
+        String key = stockShards.statusKey(voucherId, userId, orderId);
+        DeferredResult<Result> deferred = new DeferredResult<>(timeoutSeconds * 1000);
+        Set<DeferredResult<Result>> set = waiters.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet());
+        set.add(deferred);
+        deferred.onCompletion(() -> waiters.computeIfPresent(key, (k, v) -> {
+            v.remove(deferred);
+            return v.isEmpty() ? null : v;
+        }));
+        deferred.onTimeout(() -> deferred.setResult(Result.ok(get(voucherId, userId, orderId))));
+        // 先登记再读，读完之前发生的变化也不会错过
+        String status = get(voucherId, userId, orderId);
+        if (!PENDING.equals(status)) {
+            deferred.setResult(Result.ok(status));
+        }
+        return deferred;
+    }
+
+    /*
+    * 更新一批订单的状态并通知所有节点
+    * SET key status XX EX ttl，记录已经过期的不再写入
+    * 消息格式：每行 key|status
+    * */
+    public void update(List<VoucherOrder> orders, String status) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        long ttl = properties.getOrderStatusTtlSeconds();
+        try {
+            // 先算好key，分片数可能要查redis，不能放在管道里
+            List<String> keys = new ArrayList<>(orders.size());
+            StringBuilder message = new StringBuilder();
+            for (VoucherOrder order : orders) {
+                String key = stockShards.statusKey(order.getVoucherId(), order.getUserId(), order.getId());
+                keys.add(key);
+                message.append(key).append('|').append(status).append('\n');
+            }
+            byte[] value = status.getBytes(StandardCharsets.UTF_8);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String key : keys) {
+                    connection.stringCommands().set(key.getBytes(StandardCharsets.UTF_8), value,
+                            Expiration.seconds(ttl), RedisStringCommands.SetOption.SET_IF_PRESENT);
+                }
+                return null;
+            });
+            stringRedisTemplate.convertAndSend(RedisConstant.SECKILL_ORDER_STATUS_CHANNEL, message.toString());
+        } catch (Exception e) {
+            // 状态只用于查询，更新失败不影响订单，客户端超时后以订单列表为准
+            log.warn("更新{}条订单状态为{}失败", orders.size(), status, e);
+        }
+    }
+
+    // 收到状态变化的消息，完成本节点上等待这些订单的请求
+    public void onMessage(String message) {
+        for (String line : message.split("\n")) {
+            int index = line.lastIndexOf('|');
+            if (index < 0) {
+                continue;
+            }
+            Set<DeferredResult<Result>> set = waiters.get(line.substring(0, index));
+            if (set == null) {
+                continue;
+            }
+            String status = line.substring(index + 1);
+            for (DeferredResult<Result> deferred : set) {
+                deferred.setResult(Result.ok(status));
+            }
+        }
+    }
+}
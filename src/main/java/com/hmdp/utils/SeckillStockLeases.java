@@ -0,0 +1,289 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.constant.RedisConstant;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+* 秒杀库存租约：节点一次从redis的库存分片租出一批库存，之后在本地用原子计数扣减
+* 1.大部分请求只扣本地计数，不再都去争同一个库存key
+* 2.本地的库存按分片分开，只给下单分片是这个分片的用户使用；本地用完后再向这个分片租下一批，分片也没有库存时走不租的流程
+* 3.租约到期（stockLeaseSeconds内没用完）或节点关闭时，剩下的还回redis，并清除各节点的售罄标记
+* 4.租出的数量记在分片的租约hash（seckill:stock:lease:{tag}，字段是节点id）中，和库存key同一个slot：
+*   租出时stock_lease_grant.lua加上，下单成功时order.lua减一，归还时stock_lease_return.lua减去，最多还记录的数量
+* 5.节点每秒续期心跳key（seckill:stock:holder:节点id，带TTL），节点挂掉后心跳过期，
+*   其他节点定时检查seckill:stock:leases中登记的分片，把没有心跳的节点记录的库存收回；补货时也会检查一次
+* 一人一单仍然由order.lua中的seckill:order:{id}集合全局保证
+* */
+@Slf4j
+@Component
+public class SeckillStockLeases {
+
+    private static final DefaultRedisScript<Long> GRANT_SCRIPT;
+    private static final DefaultRedisScript<Long> RETURN_SCRIPT;
+    // 心跳key的有效期（秒），超过这么久没有续期的节点视为已经挂掉
+    private static final long HOLDER_TTL_SECONDS = 15;
+    // 检查挂掉的节点、收回它们的库存的间隔（秒）
+    private static final long RECLAIM_INTERVAL_SECONDS = 10;
+
+    static {
+        GRANT_SCRIPT = new DefaultRedisScript<>();
+        GRANT_SCRIPT.setLocation(new ClassPathResource("stock_lease_grant.lua"));
+        GRANT_SCRIPT.setResultType(Long.class);
+        RETURN_SCRIPT = new DefaultRedisScript<>();
+        RETURN_SCRIPT.setLocation(new ClassPathResource("stock_lease_return.lua"));
+        RETURN_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillStockShards stockShards;
+    private final SeckillProperties properties;
+    private final SoldOutVouchers soldOutVouchers;
+    // 本节点的id，租约hash中的字段
+    private final String instanceId;
+
+    // 优惠券id:分片 -> 本地的租约
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    private ScheduledExecutorService expireExecutor;
+
+    public SeckillStockLeases(StringRedisTemplate stringRedisTemplate, SeckillStockShards stockShards,
+                              SeckillProperties properties, SoldOutVouchers soldOutVouchers) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.stockShards = stockShards;
+        this.properties = properties;
+        this.soldOutVouchers = soldOutVouchers;
+        // ManagementFactory返回 进程号@主机名
+        String[] runtime = ManagementFactory.getRuntimeMXBean().getName().split("@");
+        this.instanceId = (runtime.length > 1 ? runtime[1] + "-" : "") + runtime[0];
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled()) {
+            return;
+        }
+        heartbeat();
+        expireExecutor = Executors.newScheduledThreadPool(2);
+        expireExecutor.scheduleWithFixedDelay(() -> {
+            heartbeat();
+            returnExpired();
+        }, 1, 1, TimeUnit.SECONDS);
+        expireExecutor.scheduleWithFixedDelay(this::reclaimAll, RECLAIM_INTERVAL_SECONDS,
+                RECLAIM_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // 节点关闭时把所有没用完的库存还回去
+    @PreDestroy
+    public void stop() {
+        if (expireExecutor != null) {
+            expireExecutor.shutdownNow();
+        }
+        leases.forEach(this::returnLease);
+        if (enabled()) {
+            stringRedisTemplate.delete(RedisConstant.SECKILL_STOCK_HOLDER_KEY + instanceId);
+        }
+    }
+
+    public boolean enabled() {
+        return properties.getStockLeaseSize() > 0;
+    }
+
+    // 本节点在租约hash中的字段，order.lua下单成功时用它减去租约记录
+    public String instanceId() {
+        return instanceId;
+    }
+
+    /*
+    * 在shard分片上扣减一个库存，成功返回true
+    * 本地有库存直接扣；没有时加锁向这个分片租下一批，同一个分片同时只有一个线程去租
+    * 分片上也没有库存时返回false，由调用方走不租的流程（从其他分片借、确认售罄）
+    * */
+    public boolean tryAcquire(Long voucherId, int shard) {
+        Lease lease = leases.computeIfAbsent(leaseId(voucherId, shard), id -> new Lease());
+        if (lease.take()) {
+            return true;
+        }
+        synchronized (lease) {
+            // 等锁期间其他线程可能已经租到了
+            if (lease.take()) {
+                return true;
+            }
+            // 先登记再租，节点在两步之间挂掉时登记也已经在了
+            stringRedisTemplate.opsForSet().add(RedisConstant.SECKILL_STOCK_LEASES_KEY, leaseId(voucherId, shard));
+            Long granted = stringRedisTemplate.execute(GRANT_SCRIPT,
+                    Arrays.asList(stockShards.stockKey(voucherId, shard), stockShards.leaseKey(voucherId, shard)),
+                    String.valueOf(properties.getStockLeaseSize()), instanceId);
+            if (granted == null || granted <= 0) {
+                return false;
+            }
+            // 自己先用掉一个，剩下的放进本地
+            lease.expireAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(properties.getStockLeaseSeconds());
+            lease.remaining.addAndGet((int) (granted - 1));
+            return true;
+        }
+    }
+
+    // 扣了库存但没有下单成功（重复下单、脚本执行失败），还给本地；redis中的租约记录没有变
+    public void release(Long voucherId, int shard) {
+        leases.computeIfAbsent(leaseId(voucherId, shard), id -> new Lease()).remaining.incrementAndGet();
+    }
+
+    // redis中已经没有本节点的租约记录（被当成挂掉的节点收回了），丢掉本地剩下的库存
+    public void invalidate(Long voucherId, int shard) {
+        Lease lease = leases.get(leaseId(voucherId, shard));
+        if (lease != null) {
+            int n = lease.remaining.getAndSet(0);
+            log.warn("优惠券{}分片{}的租约已被收回，丢弃本地{}个库存", voucherId, shard, n);
+        }
+    }
+
+    // 本地剩余的库存数，所有分片加起来
+    public int remaining(Long voucherId) {
+        int n = 0;
+        for (int shard = 0; shard < stockShards.shards(voucherId); shard++) {
+            Lease lease = leases.get(leaseId(voucherId, shard));
+            n += lease == null ? 0 : lease.remaining.get();
+        }
+        return n;
+    }
+
+    /*
+    * 收回优惠券各个分片上已经挂掉的节点租走的库存，返回收回的数量
+    * 补货时调用，也由定时任务对所有登记过的分片调用
+    * */
+    public long reclaim(Long voucherId) {
+        long reclaimed = 0;
+        for (int shard = 0; shard < stockShards.shards(voucherId); shard++) {
+            reclaimed += reclaim(voucherId, shard);
+        }
+        return reclaimed;
+    }
+
+    private long reclaim(Long voucherId, int shard) {
+        String leaseKey = stockShards.leaseKey(voucherId, shard);
+        Set<Object> holders = stringRedisTemplate.opsForHash().keys(leaseKey);
+        if (holders == null || holders.isEmpty()) {
+            // 没有节点持有这个分片的库存，取消登记；之后再租时会重新登记
+            stringRedisTemplate.opsForSet().remove(RedisConstant.SECKILL_STOCK_LEASES_KEY, leaseId(voucherId, shard));
+            // 取消登记的同时有节点租到了，补回登记
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(leaseKey))) {
+                stringRedisTemplate.opsForSet().add(RedisConstant.SECKILL_STOCK_LEASES_KEY, leaseId(voucherId, shard));
+            }
+            return 0;
+        }
+        long reclaimed = 0;
+        for (Object holder : holders) {
+            String node = holder.toString();
+            if (node.equals(instanceId)
+                    || Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstant.SECKILL_STOCK_HOLDER_KEY + node))) {
+                continue;
+            }
+            Long n = stringRedisTemplate.execute(RETURN_SCRIPT,
+                    Arrays.asList(stockShards.stockKey(voucherId, shard), leaseKey),
+                    String.valueOf(Integer.MAX_VALUE), node);
+            if (n != null && n > 0) {
+                reclaimed += n;
+                log.info("收回已下线节点{}租走的优惠券{}分片{}的{}个库存", node, voucherId, shard, n);
+            }
+        }
+        if (reclaimed > 0) {
+            soldOutVouchers.restocked(voucherId);
+        }
+        return reclaimed;
+    }
+
+    private void reclaimAll() {
+        try {
+            Set<String> registered = stringRedisTemplate.opsForSet().members(RedisConstant.SECKILL_STOCK_LEASES_KEY);
+            if (registered == null) {
+                return;
+            }
+            for (String id : registered) {
+                int index = id.lastIndexOf(':');
+                reclaim(Long.valueOf(id.substring(0, index)), Integer.parseInt(id.substring(index + 1)));
+            }
+        } catch (Exception e) {
+            log.warn("收回已下线节点的库存失败", e);
+        }
+    }
+
+    private void heartbeat() {
+        try {
+            stringRedisTemplate.opsForValue().set(RedisConstant.SECKILL_STOCK_HOLDER_KEY + instanceId, "1",
+                    HOLDER_TTL_SECONDS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            log.warn("续期库存租约心跳失败", e);
+        }
+    }
+
+    private void returnExpired() {
+        long now = System.currentTimeMillis();
+        leases.forEach((id, lease) -> {
+            if (lease.expireAt < now) {
+                returnLease(id, lease);
+            }
+        });
+    }
+
+    private void returnLease(String id, Lease lease) {
+        int index = id.lastIndexOf(':');
+        Long voucherId = Long.valueOf(id.substring(0, index));
+        int shard = Integer.parseInt(id.substring(index + 1));
+        synchronized (lease) {
+            int n = lease.remaining.getAndSet(0);
+            if (n <= 0) {
+                return;
+            }
+            try {
+                Long returned = stringRedisTemplate.execute(RETURN_SCRIPT,
+                        Arrays.asList(stockShards.stockKey(voucherId, shard), stockShards.leaseKey(voucherId, shard)),
+                        String.valueOf(n), instanceId);
+                log.debug("归还优惠券{}分片{}的{}个库存", voucherId, shard, returned);
+            } catch (Exception e) {
+                // 还不回去就留在本地，下次再还
+                lease.remaining.addAndGet(n);
+                log.warn("归还优惠券{}的库存失败", voucherId, e);
+                return;
+            }
+        }
+        // 其他节点可能已经标记了售罄，清除后它们可以租到还回去的库存
+        soldOutVouchers.restocked(voucherId);
+    }
+
+    private static String leaseId(Long voucherId, int shard) {
+        return voucherId + ":" + shard;
+    }
+
+    private static class Lease {
+        private final AtomicInteger remaining = new AtomicInteger();
+        private volatile long expireAt;
+
+        // 计数大于0才扣减，不会扣成负数（归还时会把计数清零）
+        boolean take() {
+            int n;
+            do {
+                n = remaining.get();
+                if (n <= 0) {
+                    return false;
+                }
+            } while (!remaining.compareAndSet(n, n - 1));
+            return true;
+        }
+    }
+}
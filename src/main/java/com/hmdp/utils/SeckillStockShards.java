@@ -0,0 +1,182 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.constant.RedisConstant;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+* 秒杀券在redis中的key布局，以及库存分片
+* 1.order.lua用到的key都通过KEYS传入，同一个秒杀券（分片）的key带相同的hash tag，集群模式下在同一个slot：
+*   不分片：seckill:stock:{id}、seckill:order:{id}、stream.orders:{id}、seckill:order:status:{id}:订单id
+*   分片s：seckill:stock:{id:s}、seckill:order:{id:s}、stream.orders:{id:s}、seckill:order:status:{id:s}:订单id
+*   每个秒杀券（分片）有自己的订单stream，不同的秒杀券分散到集群的不同节点上
+* 2.大型活动时把库存拆到K个分片上，用户固定在 用户id % K 这个分片上下单，一人一单只需要检查这一个分片的集合
+* 3.自己的分片卖完时，从其他分片拿一个库存（stock_lease.lua），再在自己的分片上下单，下单失败把库存还回去
+* 4.新增秒杀券时在seckill:shards:id记录分片数，没有这个key的是之前创建的旧秒杀券，
+*   继续使用不带hash tag的seckill:stock:id、seckill:order:id和按用户分区的stream.orders:分区，只能在单机redis上运行
+* */
+@Component
+public class SeckillStockShards {
+
+    // 从库存key中取出若干个库存，返回实际取到的数量
+    private static final DefaultRedisScript<Long> TAKE_SCRIPT;
+
+    static {
+        TAKE_SCRIPT = new DefaultRedisScript<>();
+        TAKE_SCRIPT.setLocation(new ClassPathResource("stock_lease.lua"));
+        TAKE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillProperties properties;
+
+    // 优惠券的分片数，创建后不会再变，缓存在本地；0表示旧秒杀券
+    private final Map<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+
+    public SeckillStockShards(StringRedisTemplate stringRedisTemplate, SeckillProperties properties) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.properties = properties;
+    }
+
+    public int shards(Long voucherId) {
+        return Math.max(1, layout(voucherId));
+    }
+
+    private int layout(Long voucherId) {
+        return shardCounts.computeIfAbsent(voucherId, id -> {
+            String count = stringRedisTemplate.opsForValue().get(RedisConstant.SECKILL_STOCK_SHARDS_KEY + id);
+            return StrUtil.isBlank(count) ? 0 : Integer.parseInt(count);
+        });
+    }
+
+    // 同一个秒杀券分片的key共用的hash tag，旧秒杀券没有hash tag
+    private String tag(Long voucherId, int shard) {
+        int layout = layout(voucherId);
+        if (layout == 0) {
+            return String.valueOf(voucherId);
+        }
+        return layout == 1 ? "{" + voucherId + "}" : "{" + voucherId + ":" + shard + "}";
+    }
+
+    // 用户下单使用的分片
+    public int homeShard(Long voucherId, Long userId) {
+        return (int) Math.floorMod(userId, (long) shards(voucherId));
+    }
+
+    public String stockKey(Long voucherId, int shard) {
+        return RedisConstant.SECKILL_STOCK_KEY + tag(voucherId, shard);
+    }
+
+    public String orderKey(Long voucherId, int shard) {
+        return RedisConstant.SECKILL_ORDER_KEY + tag(voucherId, shard);
+    }
+
+    // 各节点从这个分片租走的库存记录
+    public String leaseKey(Long voucherId, int shard) {
+        return RedisConstant.SECKILL_STOCK_LEASE_KEY + tag(voucherId, shard);
+    }
+
+    // 补货版本号，每个分片一个，order.lua返回库存不足时带上它
+    public String epochKey(Long voucherId, int shard) {
+        return RedisConstant.SECKILL_RESTOCK_EPOCH_KEY + tag(voucherId, shard);
+    }
+
+    /*
+    * 补货（包括租约归还）之后调用，所有分片的版本号都加一，返回加完后最大的版本号
+    * 每次都加全部分片，各分片的版本号保持一致；先加库存再加版本号，看到新版本号的脚本一定也看到了新库存
+    * */
+    public long bumpEpoch(Long voucherId) {
+        long epoch = 0;
+        for (int i = 0; i < shards(voucherId); i++) {
+            Long n = stringRedisTemplate.opsForValue().increment(epochKey(voucherId, i));
+            epoch = Math.max(epoch, n == null ? 0 : n);
+        }
+        return epoch;
+    }
+
+    // 订单的处理状态，在用户下单的分片上
+    public String statusKey(Long voucherId, Long userId, Long orderId) {
+        return RedisConstant.SECKILL_ORDER_STATUS_KEY + tag(voucherId, homeShard(voucherId, userId)) + ":" + orderId;
+    }
+
+    // 订单stream，旧秒杀券按用户id取模写到共用的分区stream
+    public String streamKey(Long voucherId, int shard, Long userId) {
+        if (layout(voucherId) == 0) {
+            return SeckillOrderConsumer.partitionKey((int) Math.floorMod(userId, (long) properties.getPartitions()));
+        }
+        return RedisConstant.SECKILL_ORDER_STREAM + ":" + tag(voucherId, shard);
+    }
+
+    /*
+    * 新增秒杀券：按配置的分片数平均分配库存，除不尽的余数分给前几个分片
+    * 每个分片的订单stream登记到seckill:streams（分数是活动结束时间），消费者从这里发现新的stream
+    * */
+    public void initStock(Long voucherId, int stock, LocalDateTime endTime) {
+        int shards = Math.max(1, properties.getStockShards());
+        stringRedisTemplate.opsForValue().set(RedisConstant.SECKILL_STOCK_SHARDS_KEY + voucherId, String.valueOf(shards));
+        shardCounts.put(voucherId, shards);
+        long end = (endTime == null ? LocalDateTime.now() : endTime).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        for (int i = 0; i < shards; i++) {
+            int n = stock / shards + (i < stock % shards ? 1 : 0);
+            stringRedisTemplate.opsForValue().set(stockKey(voucherId, i), String.valueOf(n));
+            stringRedisTemplate.opsForZSet().add(RedisConstant.SECKILL_STREAMS_KEY, streamKey(voucherId, i, 0L), end);
+        }
+    }
+
+    // 补货：同样平均分到各个分片
+    public void addStock(Long voucherId, int count) {
+        int shards = shards(voucherId);
+        // 余数从随机的分片开始分，多次补货时不会总加在前几个分片上
+        int start = ThreadLocalRandom.current().nextInt(shards);
+        for (int i = 0; i < shards; i++) {
+            int n = count / shards + (i < count % shards ? 1 : 0);
+            if (n > 0) {
+                stringRedisTemplate.opsForValue().increment(stockKey(voucherId, (start + i) % shards), n);
+            }
+        }
+    }
+
+    /*
+    * 从除exclude以外的分片中取出count个库存，从随机的分片开始依次尝试，取够或者都取完为止
+    * 返回 [取到的数量, 最后取到库存的分片]，一个都没取到时分片为-1
+    * */
+    public int[] take(Long voucherId, int count, int exclude) {
+        int shards = shards(voucherId);
+        int start = ThreadLocalRandom.current().nextInt(shards);
+        int taken = 0;
+        int lastShard = -1;
+        for (int i = 0; i < shards && taken < count; i++) {
+            int shard = (start + i) % shards;
+            if (shard == exclude) {
+                continue;
+            }
+            Long n = stringRedisTemplate.execute(TAKE_SCRIPT,
+                    Collections.singletonList(stockKey(voucherId, shard)), String.valueOf(count - taken));
+            if (n != null && n > 0) {
+                taken += n;
+                lastShard = shard;
+            }
+        }
+        return new int[]{taken, lastShard};
+    }
+
+    // 把库存还给某个分片，shard小于0时还给随机的分片
+    public void giveBack(Long voucherId, int shard, int count) {
+        if (count <= 0) {
+            return;
+        }
+        int target = shard >= 0 ? shard : ThreadLocalRandom.current().nextInt(shards(voucherId));
+        stringRedisTemplate.opsForValue().increment(stockKey(voucherId, target), count);
+    }
+}
@@ -0,0 +1,272 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.constant.RedisConstant;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/*
+* 裁剪订单stream，已经确认的消息不再一直占用redis内存
+* 1.每个节点只裁剪自己持有租约的stream
+* 2.安全边界：每个消费者组最早的未确认消息（XPENDING），没有未确认消息时是组内最后投递的消息（XINFO GROUPS），取最小值
+*   只删除id小于边界的消息，它们已经被所有消费者组确认；还没投递或者还在pending list中的消息不会被删除
+* 3.从stream开头每次取一段，配置了archiveDir时先追加写入本地的gzip文件并刷盘，再用XTRIM MINID删除（redis 6.2以下用MAXLEN）
+* 4.秒杀结束超过streamRetentionHours的stream不再有人消费，全部确认后归档剩下的消息，删除整个stream
+* 归档文件：archiveDir/stream名字.yyyyMMdd.jsonl.gz，每行一条消息，每段是一个gzip成员，可以直接用zcat读
+* 归档后节点在删除前挂掉，下一轮会再归档一次，同一条消息可能出现两次，读取时按id去重
+* */
+@Slf4j
+@Component
+public class SeckillStreamTrimmer {
+
+    private static final DefaultRedisScript<Long> TRIM_SCRIPT;
+    // 每次取出、归档、删除的消息数
+    private static final int TRIM_CHUNK = 1000;
+    // 每轮每个stream最多处理这么多段，积压很多时分几轮删完，不长时间占用redis
+    private static final int MAX_CHUNKS = 100;
+    private static final DateTimeFormatter ARCHIVE_DAY = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    static {
+        TRIM_SCRIPT = new DefaultRedisScript<>();
+        TRIM_SCRIPT.setLocation(new ClassPathResource("stream_trim.lua"));
+        TRIM_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillOrderConsumer seckillOrderConsumer;
+    private final SeckillProperties properties;
+
+    private ScheduledExecutorService executor;
+
+    public SeckillStreamTrimmer(StringRedisTemplate stringRedisTemplate, SeckillOrderConsumer seckillOrderConsumer,
+                                SeckillProperties properties) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillOrderConsumer = seckillOrderConsumer;
+        this.properties = properties;
+    }
+
+    @PostConstruct
+    public void start() {
+        long interval = properties.getTrimIntervalSeconds();
+        if (interval <= 0) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "seckill-stream-trim");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::trimAll, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void trimAll() {
+        for (String stream : seckillOrderConsumer.ownedStreams()) {
+            try {
+                String boundary = safeBoundary(stream);
+                if (boundary != null) {
+                    long removed = trim(stream, boundary);
+                    if (removed > 0) {
+                        log.info("裁剪订单stream {}，删除{}条已确认的消息", stream, removed);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("裁剪订单stream失败, stream = {}", stream, e);
+            }
+        }
+        removeExpired();
+    }
+
+    // 所有消费者组都已经确认的消息的上界（不包含），还没有消费者组时返回null，不裁剪
+    private String safeBoundary(String stream) {
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(stream);
+        if (groups == null || groups.isEmpty()) {
+            return null;
+        }
+        String boundary = null;
+        for (int i = 0; i < groups.size(); i++) {
+            StreamInfo.XInfoGroup group = groups.get(i);
+            String groupBoundary = group.lastDeliveredId();
+            if (group.pendingCount() != null && group.pendingCount() > 0) {
+                PendingMessagesSummary pending = stringRedisTemplate.opsForStream().pending(stream, group.groupName());
+                groupBoundary = pending.minMessageId();
+            }
+            if (boundary == null || compareIds(groupBoundary, boundary) < 0) {
+                boundary = groupBoundary;
+            }
+        }
+        return boundary;
+    }
+
+    // 从stream开头一段一段地归档并删除id小于boundary的消息，返回删除的条数
+    private long trim(String stream, String boundary) throws IOException {
+        long removed = 0;
+        for (int i = 0; i < MAX_CHUNKS; i++) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(stream,
+                    Range.leftUnbounded(Range.Bound.inclusive(boundary)), RedisZSetCommands.Limit.limit().count(TRIM_CHUNK));
+            List<MapRecord<String, Object, Object>> chunk = new ArrayList<>();
+            if (records != null) {
+                for (MapRecord<String, Object, Object> record : records) {
+                    if (compareIds(record.getId().getValue(), boundary) >= 0) {
+                        break;
+                    }
+                    chunk.add(record);
+                }
+            }
+            if (chunk.isEmpty()) {
+                break;
+            }
+            if (StrUtil.isNotBlank(properties.getArchiveDir())) {
+                archive(stream, chunk);
+            }
+            String first = chunk.get(0).getId().getValue();
+            String last = chunk.get(chunk.size() - 1).getId().getValue();
+            Long result = stringRedisTemplate.execute(TRIM_SCRIPT, Collections.singletonList(stream),
+                    first, nextId(last), String.valueOf(chunk.size()));
+            if (result == null || result < 0) {
+                break;
+            }
+            removed += result;
+            if (chunk.size() < TRIM_CHUNK) {
+                break;
+            }
+        }
+        return removed;
+    }
+
+    /*
+    * 删除秒杀结束超过streamRetentionHours的stream
+    * 拿到租约、所有消息都已经投递并确认后，归档剩下的消息，删除stream并从seckill:streams中移除
+    * 还有未确认的消息时保留，等待人工处理
+    * */
+    private void removeExpired() {
+        long before = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(properties.getStreamRetentionHours());
+        Set<String> expired = stringRedisTemplate.opsForZSet()
+                .rangeByScore(RedisConstant.SECKILL_STREAMS_KEY, 0, before, 0, 100);
+        if (expired == null) {
+            return;
+        }
+        long leaseMillis = TimeUnit.SECONDS.toMillis(properties.getLeaseSeconds());
+        for (String stream : expired) {
+            if (!seckillOrderConsumer.tryLease(stream, leaseMillis)) {
+                continue;
+            }
+            try {
+                if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(stream))) {
+                    stringRedisTemplate.opsForZSet().remove(RedisConstant.SECKILL_STREAMS_KEY, stream);
+                    continue;
+                }
+                List<MapRecord<String, Object, Object>> tail = stringRedisTemplate.opsForStream()
+                        .reverseRange(stream, Range.unbounded(), RedisZSetCommands.Limit.limit().count(1));
+                String boundary = safeBoundary(stream);
+                if (tail != null && !tail.isEmpty()) {
+                    String last = tail.get(0).getId().getValue();
+                    if (boundary == null || compareIds(boundary, last) < 0 || hasPending(stream)) {
+                        log.warn("秒杀已经结束的订单stream还有未确认的消息，暂不删除, stream = {}", stream);
+                        continue;
+                    }
+                    trim(stream, nextId(last));
+                }
+                stringRedisTemplate.delete(stream);
+                stringRedisTemplate.opsForZSet().remove(RedisConstant.SECKILL_STREAMS_KEY, stream);
+                log.info("删除秒杀已经结束的订单stream {}", stream);
+            } catch (Exception e) {
+                log.error("删除订单stream失败, stream = {}", stream, e);
+            } finally {
+                seckillOrderConsumer.releaseLease(stream);
+            }
+        }
+    }
+
+    private boolean hasPending(String stream) {
+        return stringRedisTemplate.opsForStream().groups(stream).stream()
+                .anyMatch(group -> group.pendingCount() != null && group.pendingCount() > 0);
+    }
+
+    /*
+    * 追加写入一个gzip成员，写完刷到磁盘后才允许删除redis中的消息
+    * 每行 {"stream":"...","id":"...","values":{...}}
+    * */
+    private void archive(String stream, List<MapRecord<String, Object, Object>> records) throws IOException {
+        Path dir = Paths.get(properties.getArchiveDir());
+        Files.createDirectories(dir);
+        String name = stream.replaceAll("[^A-Za-z0-9._-]", "_") + "." + LocalDate.now().format(ARCHIVE_DAY) + ".jsonl.gz";
+        try (FileOutputStream file = new FileOutputStream(dir.resolve(name).toFile(), true)) {
+            BufferedOutputStream buffer = new BufferedOutputStream(file);
+            GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+            Writer writer = new OutputStreamWriter(gzip, StandardCharsets.UTF_8);
+            for (MapRecord<String, Object, Object> record : records) {
+                Map<String, Object> line = new LinkedHashMap<>();
+                line.put("stream", stream);
+                line.put("id", record.getId().getValue());
+                line.put("values", record.getValue());
+                writer.write(JSONUtil.toJsonStr(line));
+                writer.write('\n');
+            }
+            writer.flush();
+            gzip.finish();
+            buffer.flush();
+            file.getFD().sync();
+        }
+    }
+
+    // 消息id的格式是 毫秒时间戳-序号，按两部分的数值比较
+    private static int compareIds(String a, String b) {
+        int i = a.indexOf('-');
+        int j = b.indexOf('-');
+        long ms1 = Long.parseLong(i < 0 ? a : a.substring(0, i));
+        long ms2 = Long.parseLong(j < 0 ? b : b.substring(0, j));
+        if (ms1 != ms2) {
+            return Long.compare(ms1, ms2);
+        }
+        long seq1 = i < 0 ? 0 : Long.parseLong(a.substring(i + 1));
+        long seq2 = j < 0 ? 0 : Long.parseLong(b.substring(j + 1));
+        return Long.compare(seq1, seq2);
+    }
+
+    // 紧跟在id后面的下一个id
+    private static String nextId(String id) {
+        int i = id.indexOf('-');
+        return id.substring(0, i) + "-" + (Long.parseLong(id.substring(i + 1)) + 1);
+    }
+}
@@ -0,0 +1,29 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.ShopType;
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.List;
+
+// 商铺类型列表的不可变快照，响应体提前编码好（json和gzip各一份），请求时直接写出字节
+@Getter
+public class ShopTypeSnapshot {
+
+    // 版本号，收到更大的版本号时重新加载
+    private final long version;
+    private final List<ShopType> types;
+    // 完整的响应体 Result.ok(types) 编码后的json
+    private final byte[] json;
+    private final byte[] gzip;
+    // 弱ETag，json和gzip两种编码共用
+    private final String etag;
+
+    public ShopTypeSnapshot(long version, List<ShopType> types, byte[] json, byte[] gzip, String etag) {
+        this.version = version;
+        this.types = Collections.unmodifiableList(types);
+        this.json = json;
+        this.gzip = gzip;
+        this.etag = etag;
+    }
+}
@@ -0,0 +1,57 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+// 进程内的请求合并：同一个key同一时间只有一个线程真正去执行，其他线程共享同一个future
+@Component
+public class SingleFlight {
+
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+
+    // 同步执行：第一个线程执行loader，其他线程阻塞等待它的结果
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader) {
+        CompletableFuture<Object> promise = new CompletableFuture<>();
+        CompletableFuture<Object> existing = calls.putIfAbsent(key, promise);
+        if (existing != null) {
+            return (T) join(existing);
+        }
+        try {
+            T value = loader.get();
+            // 先移除再完成，之后进来的请求会重新查询缓存，而不是拿到旧的future
+            calls.remove(key, promise);
+            promise.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            calls.remove(key, promise);
+            promise.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    // 当前正在执行的key数量
+    public int inFlight() {
+        return calls.size();
+    }
+
+    private static Object join(CompletableFuture<Object> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            // 把领头线程抛出的原始异常还给等待的线程
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.IdProperties;
+import com.hmdp.constant.RedisConstant;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+* 本地生成的全局唯一id（hmdp.id.mode = snowflake），生成id时不访问redis
+*   1位符号位 + 1位模式位（固定为1）+ 30位时间戳（秒，从2025.1.1开始，和RedisIdWorker一样）+ 10位机器号 + 22位序列号
+* 1.机器号启动时从redis租用（id:worker:n），定时续期；租约丢了就换一个机器号
+* 2.时间戳和序列号放在一个AtomicLong里用CAS更新，不加锁；每秒每个节点最多4194304个id，用完借用下一秒
+* 3.时钟回拨：继续使用上一次的时间戳和序列号，直到时钟追上来，id仍然递增不会重复
+* 4.发号前先在redis中预留时间戳：用到预留范围之外的秒时，先同步写入 当前秒+租约秒数 再返回id，
+*   下一个租到这个机器号的节点从预留的时间戳之后开始，不会和上一个持有者发过的id重复
+* 5.redis长时间不可用、超过租约时长没有续期成功时，机器号可能已经被其他节点租走，停止发号
+* 6.RedisIdWorker的id是 31位时间戳 + 32位序列号，时间戳到2059年之前最高位都是0，模式位为1的id不会和它重复
+* */
+@Slf4j
+@Primary
+@Component
+@ConditionalOnProperty(prefix = "hmdp.id", name = "mode", havingValue = "snowflake")
+public class SnowflakeIdWorker implements IdGenerator {
+
+    private static final long BEGIN_TIMESTAMP = 1735689600L;  //2025.1.1
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 22;
+    private static final int MAX_WORKERS = 1 << WORKER_BITS;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    // 模式位，和RedisIdWorker生成的id区分开
+    private static final long MODE_BIT = 1L << 62;
+
+    // 获取或续期租约，和订单stream的租约是同一个脚本
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("partition_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final long leaseMillis;
+    // 每次预留的秒数
+    private final long reserveSeconds;
+    private final String instanceId;
+    // 和RedisIdWorker一样按本地时间换算秒数，启动时确定时区偏移，运行期间不变，夏令时切换也不会回拨
+    private final long offsetSeconds;
+
+    private volatile Worker worker;
+    // 是否处于时钟回拨中，只在开始回拨时打印一次日志
+    private final AtomicBoolean clockBehind = new AtomicBoolean();
+    private ScheduledExecutorService heartbeatExecutor;
+
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate, IdProperties idProperties) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.leaseMillis = TimeUnit.SECONDS.toMillis(Math.max(3, idProperties.getWorkerLeaseSeconds()));
+        this.reserveSeconds = TimeUnit.MILLISECONDS.toSeconds(leaseMillis);
+        String[] runtime = ManagementFactory.getRuntimeMXBean().getName().split("@");
+        this.instanceId = (runtime.length > 1 ? runtime[1] + "-" : "") + runtime[0];
+        this.offsetSeconds = ZoneId.systemDefault().getRules()
+                .getOffset(Instant.now()).getTotalSeconds();
+    }
+
+    // 启动时租一个机器号，租不到启动失败
+    @PostConstruct
+    public void start() {
+        worker = acquireWorker();
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "id-worker-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeatExecutor.scheduleAtFixedRate(this::heartbeat, leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
+        log.info("snowflake机器号{}，节点{}", worker.id, instanceId);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (heartbeatExecutor != null) {
+            heartbeatExecutor.shutdownNow();
+        }
+        Worker current = worker;
+        if (current != null) {
+            try {
+                stringRedisTemplate.execute(RELEASE_SCRIPT,
+                        Collections.singletonList(RedisConstant.ID_WORKER_KEY + current.id), instanceId);
+            } catch (Exception e) {
+                log.warn("释放机器号{}失败", current.id, e);
+            }
+        }
+    }
+
+    @Override
+    public long nextId(String key) {
+        Worker current = worker;
+        if (current == null || System.nanoTime() > current.validUntil) {
+            throw new IllegalStateException("机器号租约已过期，暂停生成id");
+        }
+        long now = System.currentTimeMillis() / 1000 + offsetSeconds - BEGIN_TIMESTAMP;
+        while (true) {
+            long state = current.state.get();
+            long lastSecond = state >>> SEQUENCE_BITS;
+            long next;
+            if (now > lastSecond) {
+                // 新的一秒，序列号从0开始
+                next = now << SEQUENCE_BITS;
+            } else if ((state & SEQUENCE_MASK) < SEQUENCE_MASK) {
+                // 同一秒，或者时钟回拨了，继续使用上一次的时间戳
+                next = state + 1;
+            } else {
+                // 这一秒的序列号用完了，借用下一秒
+                next = (lastSecond + 1) << SEQUENCE_BITS;
+            }
+            if (current.state.compareAndSet(state, next)) {
+                checkClock(now, lastSecond);
+                long second = next >>> SEQUENCE_BITS;
+                if (second > current.reservedUntil) {
+                    reserve(current, second);
+                }
+                return MODE_BIT | second << 32 | current.id << SEQUENCE_BITS | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    private void checkClock(long now, long lastSecond) {
+        if (now < lastSecond) {
+            if (clockBehind.compareAndSet(false, true)) {
+                log.warn("检测到时钟回拨{}秒，继续使用上一次的时间戳生成id", lastSecond - now);
+            }
+        } else if (clockBehind.get() && clockBehind.compareAndSet(true, false)) {
+            log.info("时钟已经追上，恢复使用当前时间生成id");
+        }
+    }
+
+    /*
+    * 在redis中预留到second + reserveSeconds，写入成功之后才能返回这一秒的id
+    * 写入失败时抛出异常，这次的id不发出去（id不连续但不会重复）
+    * */
+    private void reserve(Worker current, long second) {
+        synchronized (current) {
+            if (second <= current.reservedUntil) {
+                return;
+            }
+            long until = second + reserveSeconds;
+            stringRedisTemplate.opsForHash().put(RedisConstant.ID_WORKER_LAST_KEY, String.valueOf(current.id),
+                    String.valueOf(until));
+            current.reservedUntil = until;
+        }
+    }
+
+    /*
+    * 从随机的机器号开始依次尝试租用
+    * 上一个持有者预留的时间戳之前的id可能已经被用过，新的机器号从它之后开始
+    * */
+    private Worker acquireWorker() {
+        int start = ThreadLocalRandom.current().nextInt(MAX_WORKERS);
+        for (int i = 0; i < MAX_WORKERS; i++) {
+            int id = (start + i) % MAX_WORKERS;
+            long leasedAt = System.nanoTime();
+            if (tryLease(id)) {
+                Object last = stringRedisTemplate.opsForHash().get(RedisConstant.ID_WORKER_LAST_KEY, String.valueOf(id));
+                long now = System.currentTimeMillis() / 1000 + offsetSeconds - BEGIN_TIMESTAMP;
+                long from = last == null ? now : Math.max(now, Long.parseLong(last.toString()) + 1);
+                return new Worker(id, from, leasedAt + TimeUnit.MILLISECONDS.toNanos(leaseMillis));
+            }
+        }
+        throw new IllegalStateException("没有可用的snowflake机器号，" + MAX_WORKERS + "个都已经被占用");
+    }
+
+    // 续期机器号；租约被其他节点拿走了就换一个
+    private void heartbeat() {
+        Worker current = worker;
+        try {
+            long renewedAt = System.nanoTime();
+            if (tryLease(current.id)) {
+                current.validUntil = renewedAt + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+                return;
+            }
+            log.warn("机器号{}的租约已被其他节点持有，重新租用", current.id);
+            worker = acquireWorker();
+            log.info("snowflake机器号切换为{}", worker.id);
+        } catch (Exception e) {
+            // redis不可用时继续使用当前机器号，直到租约过期
+            log.warn("续期机器号{}失败", current.id, e);
+        }
+    }
+
+    private boolean tryLease(long id) {
+        Long result = stringRedisTemplate.execute(LEASE_SCRIPT,
+                Collections.singletonList(RedisConstant.ID_WORKER_KEY + id),
+                instanceId, String.valueOf(leaseMillis));
+        return result != null && result == 1L;
+    }
+
+    private static final class Worker {
+        private final long id;
+        // 高位是时间戳（秒），低22位是这一秒已经用到的序列号
+        private final AtomicLong state;
+        // 租约到期的时间（System.nanoTime）
+        private volatile long validUntil;
+        // redis中已经预留到的时间戳（秒），之前的id可以直接发
+        private volatile long reservedUntil;
+
+        Worker(long id, long fromSecond, long validUntil) {
+            this.id = id;
+            // 从fromSecond的序列号0开始：先放一个fromSecond-1的已用完状态，下一次发号就是fromSecond
+            this.state = new AtomicLong(((fromSecond - 1) << SEQUENCE_BITS) | SEQUENCE_MASK);
+            this.validUntil = validUntil;
+            this.reservedUntil = fromSecond - 1;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.constant.RedisConstant;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+* 进程内的秒杀券售罄标记：售罄后的抢购请求直接在本地返回，不再生成订单id、不再执行lua脚本
+* 1.lua脚本返回库存不足时标记售罄，并通过发布订阅通知其他节点
+* 2.补货时清除标记，同样通知其他节点
+* 3.消息里带上redis中的补货版本号（seckill:restock:epoch:{tag}，补货时加一，order.lua返回售罄时一起返回）：
+*   补货之前执行的lua脚本返回的售罄结果，晚于补货消息到达时会被忽略；不比较各节点的时钟
+* 4.标记有过期时间，补货消息丢失时最多soldOutTtlSeconds后恢复
+* */
+@Slf4j
+@Component
+public class SoldOutVouchers {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillProperties properties;
+
+    private final SeckillStockShards stockShards;
+
+    // 优惠券id -> 售罄标记
+    private final Map<Long, Mark> soldOut = new ConcurrentHashMap<>();
+    // 优惠券id -> 已知的最新补货版本号
+    private final Map<Long, Long> restockEpochs = new ConcurrentHashMap<>();
+
+    public SoldOutVouchers(StringRedisTemplate stringRedisTemplate, SeckillProperties properties,
+                           SeckillStockShards stockShards) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.properties = properties;
+        this.stockShards = stockShards;
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Mark mark = soldOut.get(voucherId);
+        if (mark == null) {
+            return false;
+        }
+        if (mark.expireAt < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, mark);
+            return false;
+        }
+        return true;
+    }
+
+    // lua脚本返回库存不足，epoch是脚本执行时看到的补货版本号
+    public void markSoldOut(Long voucherId, long epoch) {
+        if (markLocal(voucherId, epoch)) {
+            stringRedisTemplate.convertAndSend(RedisConstant.SECKILL_SOLD_OUT_CHANNEL, "+" + voucherId + ":" + epoch);
+        }
+    }
+
+    // 库存加回redis后调用：先在redis中递增补货版本号，再清除标记
+    public void restocked(Long voucherId) {
+        long epoch = stockShards.bumpEpoch(voucherId);
+        clearLocal(voucherId, epoch);
+        stringRedisTemplate.convertAndSend(RedisConstant.SECKILL_SOLD_OUT_CHANNEL, "-" + voucherId + ":" + epoch);
+    }
+
+    // 收到其他节点的消息，格式为 +id:版本号 或 -id:版本号
+    public void onMessage(String message) {
+        int index = message.indexOf(':');
+        if (message.length() < 2 || index < 0) {
+            return;
+        }
+        try {
+            Long voucherId = Long.valueOf(message.substring(1, index));
+            long epoch = Long.parseLong(message.substring(index + 1));
+            if (message.charAt(0) == '+') {
+                markLocal(voucherId, epoch);
+            } else {
+                clearLocal(voucherId, epoch);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("无法解析售罄消息: {}", message);
+        }
+    }
+
+    private boolean markLocal(Long voucherId, long epoch) {
+        // 看到最新一次补货之后执行的脚本返回的售罄才算数
+        if (restockEpochs.getOrDefault(voucherId, 0L) > epoch) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        Mark old = soldOut.put(voucherId, new Mark(epoch, now + TimeUnit.SECONDS.toMillis(properties.getSoldOutTtlSeconds())));
+        // 已经标记过（并且没过期）的不再重复广播
+        return old == null || old.expireAt < now;
+    }
+
+    private void clearLocal(Long voucherId, long epoch) {
+        restockEpochs.merge(voucherId, epoch, Math::max);
+        // 只清除这次补货之前的售罄标记，补货之后（看到了这个版本号）的售罄仍然有效
+        soldOut.computeIfPresent(voucherId, (id, mark) -> mark.epoch < epoch ? null : mark);
+    }
+
+    private static class Mark {
+        private final long epoch;
+        private final long expireAt;
+
+        Mark(long epoch, long expireAt) {
+            this.epoch = epoch;
+            this.expireAt = expireAt;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+-- ----------------------------
+-- 给已有的 tb_voucher_order 加上一人一单的唯一索引 uk_user_voucher(user_id, voucher_id)
+-- hmdp.sql 新建的库已经有这个索引，不需要执行
+-- 订单消费者依靠这个索引去重（INSERT IGNORE），旧库不加索引时重复的订单不会被拦住
+-- 建议停止订单消费者后执行；ALTER 因为新的重复数据失败时，重新执行整个脚本即可
+-- ----------------------------
+
+-- 1.重复的订单先备份到 tb_voucher_order_dup，每个用户每个优惠券保留id最小（最早）的一条，其余的需要人工退款
+CREATE TABLE IF NOT EXISTS `tb_voucher_order_dup` LIKE `tb_voucher_order`;
+
+INSERT INTO `tb_voucher_order_dup`
+SELECT o.* FROM `tb_voucher_order` o
+WHERE EXISTS (
+  SELECT 1 FROM `tb_voucher_order` k
+  WHERE k.`user_id` = o.`user_id` AND k.`voucher_id` = o.`voucher_id` AND k.`id` < o.`id`
+);
+
+-- 2.删除重复的订单
+DELETE o FROM `tb_voucher_order` o
+JOIN `tb_voucher_order` k
+  ON k.`user_id` = o.`user_id` AND k.`voucher_id` = o.`voucher_id` AND k.`id` < o.`id`;
+
+-- 3.加唯一索引
+ALTER TABLE `tb_voucher_order` ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`) USING BTREE;
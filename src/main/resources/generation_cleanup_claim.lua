@@ -0,0 +1,10 @@
+-- 认领一个到期的旧代清理任务：把到期时间推后到ARGV[3]，其他节点在这之前不会再认领
+-- 认领的节点清理完后删除任务；清理途中节点挂掉时，到了ARGV[3]由其他节点重新认领
+-- KEYS[1] 清理任务的zset，ARGV[1] 任务（前缀|代数），ARGV[2] 当前时间，ARGV[3] 重新认领的时间
+-- 返回1表示认领成功；任务不存在（已经清理完）或者还没到期返回0
+local due = redis.call('zscore', KEYS[1], ARGV[1])
+if (not due or tonumber(due) > tonumber(ARGV[2])) then
+    return 0
+end
+redis.call('zadd', KEYS[1], ARGV[3], ARGV[1])
+return 1
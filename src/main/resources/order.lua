@@ -5,28 +5,52 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 -- 1.3.订单id
 local orderId = ARGV[3]
+-- 1.4.库存的扣减方式：0 扣stockKey中的库存；1 已经从其他分片拿到了库存；2 已经在本节点的租约中扣过，下单成功后减少租约记录
+local leased = ARGV[4]
+-- 1.5.订单状态记录的有效期（秒）
+local statusTtl = ARGV[5]
+-- 1.6.本节点的id，租约hash中的字段
+local node = ARGV[6]
 
 -- 2.数据key
--- 2.1.库存key
-local stockKey = 'seckill:stock:' .. voucherId
--- 2.2.订单key
-local orderKey = 'seckill:order:' .. voucherId
+-- 2.1.库存key，分片时是 seckill:stock:{voucherId:分片}
+local stockKey = KEYS[1]
+-- 2.2.订单key，和库存key同一个分片（hash tag相同）
+local orderKey = KEYS[2]
+-- 2.3.订单stream，每个秒杀券（分片）一个，和上面两个key在同一个slot
+local streamKey = KEYS[3]
+-- 2.4.订单状态key，seckill:order:status:{voucherId}:订单id
+local statusKey = KEYS[4]
+-- 2.5.租约记录，seckill:stock:lease:{voucherId}，各节点从这个分片租走、还没有卖出的库存数
+local leaseKey = KEYS[5]
+-- 2.6.补货版本号，seckill:restock:epoch:{voucherId}，每次补货加一
+local epochKey = KEYS[6]
 
 -- 3.脚本业务
+-- 3.0.租约记录已经没有了，说明本节点被当成下线节点、租走的库存已被收回，返回3
+if(leased == '2' and (tonumber(redis.call('hget', leaseKey, node)) or 0) <= 0) then
+    return {3}
+end
 -- 3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get', stockKey)) <= 0) then
-    -- 3.2.库存不足，返回1
-    return 1
+if(leased == '0' and (tonumber(redis.call('get', stockKey)) or 0) <= 0) then
+    -- 3.2.库存不足，返回1和当前的补货版本号，比它新的补货消息会清除售罄标记
+    return {1, tonumber(redis.call('get', epochKey)) or 0}
 end
 -- 3.2.判断用户是否下单 SISMEMBER orderKey userId
 if(redis.call('sismember', orderKey, userId) == 1) then
     -- 3.3.存在，说明是重复下单，返回2
-    return 2
+    return {2}
+end
+-- 3.4.扣库存 incrby stockKey -1，租约中的库存已经卖出一个 hincrby leaseKey node -1
+if(leased == '0') then
+    redis.call('incrby', stockKey, -1)
+elseif(leased == '2' and redis.call('hincrby', leaseKey, node, -1) <= 0) then
+    redis.call('hdel', leaseKey, node)
 end
--- 3.4.扣库存 incrby stockKey -1
-redis.call('incrby', stockKey, -1)
 -- 3.5.下单（保存用户）sadd orderKey userId
 redis.call('sadd', orderKey, userId)
--- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
\ No newline at end of file
+-- 3.6.发送消息到队列中， XADD stream.orders:{voucherId} * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 3.7.记录订单状态，消费者写入数据库后更新 set statusKey PENDING EX statusTtl
+redis.call('set', statusKey, 'PENDING', 'EX', statusTtl)
+return {0}
@@ -0,0 +1,13 @@
+-- 获取或续期分区的租约
+-- KEYS[1] 租约key，ARGV[1] 节点id，ARGV[2] 租约时长（毫秒）
+-- 已经是自己的就续期，没有主人就占用，返回1；被其他节点持有返回0
+local owner = redis.call('GET', KEYS[1])
+if (owner == ARGV[1]) then
+    redis.call('PEXPIRE', KEYS[1], ARGV[2])
+    return 1
+end
+if (not owner) then
+    redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2])
+    return 1
+end
+return 0
@@ -0,0 +1,10 @@
+-- 从秒杀库存中租出一批，交给节点在本地扣减
+-- KEYS[1] 库存key，ARGV[1] 想要租的数量
+-- 返回实际租到的数量，库存不足时租出剩下的全部，没有库存返回0
+local stock = tonumber(redis.call('get', KEYS[1]))
+if (not stock or stock <= 0) then
+    return 0
+end
+local n = math.min(stock, tonumber(ARGV[1]))
+redis.call('decrby', KEYS[1], n)
+return n
@@ -0,0 +1,11 @@
+-- 节点从一个分片租出一批库存，同时记在这个分片的租约hash中，节点挂掉后其他节点可以按记录收回
+-- KEYS[1] 库存key，KEYS[2] 租约hash（和库存key同一个hash tag），ARGV[1] 想要租的数量，ARGV[2] 节点id
+-- 返回实际租到的数量，库存不足时租出剩下的全部，没有库存返回0
+local stock = tonumber(redis.call('get', KEYS[1]))
+if (not stock or stock <= 0) then
+    return 0
+end
+local n = math.min(stock, tonumber(ARGV[1]))
+redis.call('decrby', KEYS[1], n)
+redis.call('hincrby', KEYS[2], ARGV[2], n)
+return n
@@ -0,0 +1,14 @@
+-- 把节点租出的库存还回分片，最多还租约hash中记录的数量，不会多还
+-- KEYS[1] 库存key，KEYS[2] 租约hash，ARGV[1] 要还的数量，ARGV[2] 节点id
+-- 返回实际还回的数量；记录清零后删除这个节点的字段
+local held = tonumber(redis.call('hget', KEYS[2], ARGV[2])) or 0
+local n = math.min(held, tonumber(ARGV[1]))
+if (n > 0) then
+    redis.call('incrby', KEYS[1], n)
+end
+if (held - n <= 0) then
+    redis.call('hdel', KEYS[2], ARGV[2])
+else
+    redis.call('hincrby', KEYS[2], ARGV[2], -n)
+end
+return n
@@ -0,0 +1,18 @@
+-- 删除订单stream最前面一段已经确认（并归档）的消息
+-- KEYS[1] stream，ARGV[1] 这一段的第一条消息id，ARGV[2] 最后一条消息的下一个id，ARGV[3] 这一段的条数
+-- 返回删除的条数；stream的第一条已经不是ARGV[1]（被别的节点裁剪过）时不删除，返回-1
+local head = redis.call('xrange', KEYS[1], '-', '+', 'COUNT', 1)
+if (#head == 0 or head[1][1] ~= ARGV[1]) then
+    return -1
+end
+-- redis 6.2及以上：XTRIM MINID，删除id小于ARGV[2]的消息
+local result = redis.pcall('xtrim', KEYS[1], 'MINID', ARGV[2])
+if (type(result) == 'number') then
+    return result
+end
+-- 更早的版本没有MINID：按保留的条数裁剪，长度在脚本里计算，期间不会有新消息写入
+local keep = redis.call('xlen', KEYS[1]) - tonumber(ARGV[3])
+if (keep < 0) then
+    keep = 0
+end
+return redis.call('xtrim', KEYS[1], 'MAXLEN', keep)
@@ -1,15 +1,45 @@
 package com.hmdp;
 
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IShopService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.config.IdProperties;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheSerializer;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisData;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SnowflakeIdWorker;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -18,6 +48,12 @@ class HmDianPingApplicationTests {
     private IShopService shopService;
     @Resource
     private RedisIdWorker redisIdWorker;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
 
     private static final ExecutorService ES = Executors.newFixedThreadPool(500);
 
@@ -44,4 +80,216 @@ class HmDianPingApplicationTests {
         long end = System.currentTimeMillis();
         System.out.println("time = " + (end - begin));
     }
+
+    // 和testIdWorker相同的负载（300个任务各生成100个id），对比每个id一次INCR和号段模式的耗时
+    @Test
+    void testIdWorkerSegment() throws InterruptedException {
+        RedisIdWorker incr = new RedisIdWorker(stringRedisTemplate, 0);
+        RedisIdWorker segment = new RedisIdWorker(stringRedisTemplate, 1000);
+        Set<Long> ids = new HashSet<>(benchmarkIdWorker("incr", incr));
+        // 两种方式共用同一个序列号key，号段模式的id也不能和逐个INCR的重复
+        for (Long id : benchmarkIdWorker("segment-1000", segment)) {
+            assertTrue(ids.add(id), "号段模式生成了重复的id: " + id);
+        }
+        incr.shutdown();
+        segment.shutdown();
+    }
+
+    // 同样的负载，snowflake模式生成id基本不访问redis，只有租用机器号和每隔一个租约时长预留一次时间戳
+    @Test
+    void testIdWorkerSnowflake() throws InterruptedException {
+        SnowflakeIdWorker idWorker = new SnowflakeIdWorker(stringRedisTemplate, new IdProperties());
+        idWorker.start();
+        try {
+            List<Long> ids = benchmarkIdWorker("snowflake", idWorker);
+            // 模式位为1，和RedisIdWorker的id区分开
+            long redisId = redisIdWorker.nextId("order");
+            assertEquals(0, redisId & (1L << 62));
+            for (Long id : ids) {
+                assertTrue(id > 0 && (id & (1L << 62)) != 0, "snowflake id没有模式位: " + id);
+            }
+        } finally {
+            idWorker.stop();
+        }
+    }
+
+    // 返回生成的全部id，并检查没有重复、每个任务拿到的id递增
+    private List<Long> benchmarkIdWorker(String name, IdGenerator idWorker) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(300);
+        List<Long> ids = Collections.synchronizedList(new ArrayList<>(30000));
+        AtomicInteger notIncreasing = new AtomicInteger();
+        Runnable task = () -> {
+            long last = 0;
+            List<Long> generated = new ArrayList<>(100);
+            for (int i = 0; i < 100; i++) {
+                long id = idWorker.nextId("order");
+                if (id <= last) {
+                    notIncreasing.incrementAndGet();
+                }
+                last = id;
+                generated.add(id);
+            }
+            ids.addAll(generated);
+            latch.countDown();
+        };
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < 300; i++) {
+            ES.submit(task);
+        }
+        latch.await();
+        long cost = Math.max(1, System.currentTimeMillis() - begin);
+        System.out.println(name + ": time = " + cost + " ms, " + 30000L * 1000 / cost + " ids/s");
+        assertEquals(30000, ids.size());
+        assertEquals(30000, new HashSet<>(ids).size(), name + "生成了重复的id");
+        assertEquals(0, notIncreasing.get(), name + "生成的id不是递增的");
+        return ids;
+    }
+
+    // 对比不同缓存编码的存储字节数和编解码耗时
+    @Test
+    void testCacheCodec() {
+        Shop shop = new Shop()
+                .setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setImages(StrUtil.repeatAndJoin("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg", 8, ","))
+                .setArea("大关").setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192).setY(30.316078)
+                .setAvgPrice(80L).setSold(4215).setComments(3035).setScore(37)
+                .setOpenHours("10:00-22:00")
+                // json编码只保留到毫秒，去掉纳秒后才能比较编解码前后是否相等
+                .setCreateTime(LocalDateTime.now().withNano(0)).setUpdateTime(LocalDateTime.now().withNano(0));
+        benchmarkCodec("json", new CacheSerializer(new JsonCacheCodec(), 0), shop);
+        benchmarkCodec("binary", new CacheSerializer(new BinaryCacheCodec(), 0), shop);
+        benchmarkCodec("binary+lz4", new CacheSerializer(new BinaryCacheCodec(), 256), shop);
+
+        // 逻辑过期的数据：过期时间写在头部，不解析数据就能读出来
+        CacheSerializer serializer = new CacheSerializer(new BinaryCacheCodec(), 256);
+        LocalDateTime expireTime = LocalDateTime.now().plusMinutes(30).withNano(0);
+        long expireAt = expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        byte[] logical = serializer.serialize(shop, expireAt);
+        assertEquals(expireAt, CacheSerializer.logicalExpireAt(logical));
+        RedisData redisData = serializer.deserializeRedisData(logical, Shop.class);
+        assertEquals(expireTime, redisData.getExpireTime());
+        assertEquals(shop, redisData.getData());
+
+        // 旧格式：MAGIC_V1头部 + 编码后的RedisData，没有逻辑过期头
+        RedisData legacy = new RedisData();
+        legacy.setExpireTime(expireTime);
+        legacy.setData(shop);
+        byte[] payload = new BinaryCacheCodec().encode(legacy);
+        byte[] v1 = new byte[payload.length + 2];
+        v1[0] = (byte) 0xCA;
+        v1[1] = BinaryCacheCodec.ID;
+        System.arraycopy(payload, 0, v1, 2, payload.length);
+        assertEquals(CacheSerializer.NOT_LOGICAL, CacheSerializer.logicalExpireAt(v1));
+        assertNull(CacheSerializer.etag(v1));
+        redisData = serializer.deserializeRedisData(v1, Shop.class);
+        assertEquals(expireTime, redisData.getExpireTime());
+        assertEquals(shop, redisData.getData());
+
+        // 更旧的格式：没有头部的json字符串
+        byte[] json = new JsonCacheCodec().encode(shop);
+        assertEquals(shop, serializer.deserialize(json, Shop.class));
+    }
+
+    private void benchmarkCodec(String name, CacheSerializer serializer, Shop shop) {
+        int rounds = 100000;
+        byte[] bytes = serializer.serialize(shop);
+        assertEquals(shop, serializer.deserialize(bytes, Shop.class), name + "编解码后数据不一致");
+        assertNotNull(CacheSerializer.etag(bytes));
+        // 预热
+        for (int i = 0; i < rounds; i++) {
+            serializer.deserialize(serializer.serialize(shop), Shop.class);
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            bytes = serializer.serialize(shop);
+        }
+        long encodeNs = (System.nanoTime() - begin) / rounds;
+        begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            serializer.deserialize(bytes, Shop.class);
+        }
+        long decodeNs = (System.nanoTime() - begin) / rounds;
+        System.out.println(name + ": bytes = " + bytes.length + ", encode = " + encodeNs + " ns/op, decode = " + decodeNs + " ns/op");
+    }
+
+    // 对比逐条写入和不同批量大小下的订单写入吞吐量（使用一张临时的秒杀券，结束后删除）
+    @Test
+    void testBatchOrderPersistence() {
+        long voucherId = 999999L;
+        int total = 2000;
+        seckillVoucherService.save(new SeckillVoucher()
+                .setVoucherId(voucherId).setStock(Integer.MAX_VALUE)
+                .setBeginTime(LocalDateTime.now()).setEndTime(LocalDateTime.now().plusDays(1)));
+        try {
+            long userId = 1L;
+            int rounds = 0;
+            for (int batchSize : new int[]{1, 10, 50, 100, 200}) {
+                List<VoucherOrder> orders = new ArrayList<>(total);
+                for (int i = 0; i < total; i++) {
+                    orders.add(new VoucherOrder().setId(redisIdWorker.nextId("order"))
+                            .setUserId(userId++).setVoucherId(voucherId));
+                }
+                long begin = System.currentTimeMillis();
+                if (batchSize == 1) {
+                    orders.forEach(voucherOrderService::createVoucherOrder);
+                } else {
+                    for (int i = 0; i < total; i += batchSize) {
+                        voucherOrderService.createVoucherOrders(orders.subList(i, Math.min(total, i + batchSize)));
+                    }
+                }
+                long cost = Math.max(1, System.currentTimeMillis() - begin);
+                System.out.println("batchSize = " + batchSize + ", time = " + cost + " ms, " + total * 1000L / cost + " orders/s");
+                // 每一轮写入total条订单，库存扣减同样的数量
+                rounds++;
+                assertEquals((long) total * rounds, orderCount(voucherId));
+                assertEquals(Integer.MAX_VALUE - total * rounds, seckillVoucherService.getById(voucherId).getStock().intValue());
+            }
+
+            // 重复投递的消息算创建成功，同一用户用新的订单id再下单被唯一索引跳过，不扣库存
+            VoucherOrder created = new VoucherOrder().setId(redisIdWorker.nextId("order")).setUserId(userId++).setVoucherId(voucherId);
+            voucherOrderService.createVoucherOrder(created);
+            VoucherOrder duplicate = new VoucherOrder().setId(redisIdWorker.nextId("order"))
+                    .setUserId(created.getUserId()).setVoucherId(voucherId);
+            VoucherOrder fresh = new VoucherOrder().setId(redisIdWorker.nextId("order")).setUserId(userId++).setVoucherId(voucherId);
+            Set<Long> ids = voucherOrderService.createVoucherOrders(Arrays.asList(created, duplicate, fresh));
+            assertEquals(new HashSet<>(Arrays.asList(created.getId(), fresh.getId())), ids);
+            assertEquals((long) total * rounds + 2, orderCount(voucherId));
+            assertEquals(Integer.MAX_VALUE - total * rounds - 2, seckillVoucherService.getById(voucherId).getStock().intValue());
+        } finally {
+            voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+            seckillVoucherService.removeById(voucherId);
+        }
+    }
+
+    // 一个优惠券库存不够时整批回滚，其他优惠券已经写入的订单和扣减的库存也一起回滚
+    @Test
+    void testBatchOrderRollback() {
+        long enough = 999998L;
+        long scarce = 999999L;
+        for (long voucherId : new long[]{enough, scarce}) {
+            seckillVoucherService.save(new SeckillVoucher()
+                    .setVoucherId(voucherId).setStock(voucherId == scarce ? 1 : 10)
+                    .setBeginTime(LocalDateTime.now()).setEndTime(LocalDateTime.now().plusDays(1)));
+        }
+        try {
+            List<VoucherOrder> orders = new ArrayList<>();
+            for (long userId = 1; userId <= 2; userId++) {
+                orders.add(new VoucherOrder().setId(redisIdWorker.nextId("order")).setUserId(userId).setVoucherId(enough));
+                orders.add(new VoucherOrder().setId(redisIdWorker.nextId("order")).setUserId(userId).setVoucherId(scarce));
+            }
+            assertThrows(IllegalStateException.class, () -> voucherOrderService.createVoucherOrders(orders));
+            assertEquals(0, orderCount(enough));
+            assertEquals(0, orderCount(scarce));
+            assertEquals(10, seckillVoucherService.getById(enough).getStock().intValue());
+            assertEquals(1, seckillVoucherService.getById(scarce).getStock().intValue());
+        } finally {
+            voucherOrderService.remove(new QueryWrapper<VoucherOrder>().in("voucher_id", enough, scarce));
+            seckillVoucherService.removeByIds(Arrays.asList(enough, scarce));
+        }
+    }
+
+    private long orderCount(long voucherId) {
+        return voucherOrderService.count(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+    }
 }
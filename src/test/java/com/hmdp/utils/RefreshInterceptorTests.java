@@ -0,0 +1,97 @@
+package com.hmdp.utils;
+
+import com.hmdp.constant.RedisConstant;
+import com.hmdp.dto.UserDTO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+// 长轮询（异步请求）之后，同一个线程上的匿名请求不能继承上一个用户的登录状态
+class RefreshInterceptorTests {
+
+    private static final String TOKEN = "token-1";
+
+    private MockMvc mockMvc;
+
+    @RestController
+    static class TestController {
+        @GetMapping("/poll")
+        public DeferredResult<String> poll() {
+            // 一直不完成，模拟还在等待的长轮询
+            return new DeferredResult<>();
+        }
+
+        @GetMapping("/me")
+        public String me() {
+            return String.valueOf(UserHolder.getUser().getId());
+        }
+    }
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        HashOperations<String, Object, Object> hashOperations = mock(HashOperations.class);
+        Map<Object, Object> user = new HashMap<>();
+        user.put("id", "1");
+        user.put("nickName", "user1");
+        when(stringRedisTemplate.<Object, Object>opsForHash()).thenReturn(hashOperations);
+        when(hashOperations.entries(RedisConstant.LOGIN_USER_KEY + TOKEN)).thenReturn(user);
+        mockMvc = MockMvcBuilders.standaloneSetup(new TestController())
+                .addInterceptors(new RefreshInterceptor(stringRedisTemplate), new LoginInterceptor())
+                .build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        UserHolder.removeUser();
+    }
+
+    @Test
+    void anonymousRequestAfterLongPollIsNotLoggedIn() throws Exception {
+        // MockMvc在当前线程上处理请求，相当于两个请求先后落在同一个tomcat线程
+        mockMvc.perform(get("/poll").header("authorization", TOKEN))
+                .andExpect(request().asyncStarted());
+        assertNull(UserHolder.getUser());
+
+        mockMvc.perform(get("/me"))
+                .andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    void loggedInRequestStillSeesItsUser() throws Exception {
+        mockMvc.perform(get("/me").header("authorization", TOKEN))
+                .andExpect(status().isOk())
+                .andExpect(content().string("1"));
+        assertNull(UserHolder.getUser());
+    }
+
+    @Test
+    void leftoverUserIsClearedBeforeAnonymousRequest() throws Exception {
+        // 即使有别的地方漏了清理，没有token的请求也不会用上残留的用户
+        UserDTO leftover = new UserDTO();
+        leftover.setId(2L);
+        UserHolder.saveUser(leftover);
+
+        mockMvc.perform(get("/me"))
+                .andExpect(status().isUnauthorized());
+    }
+}